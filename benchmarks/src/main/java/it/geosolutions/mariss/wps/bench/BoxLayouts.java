@@ -0,0 +1,82 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.bench;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.geometry.BoundingBox;
+
+/**
+ * Granule bounding boxes as returned by the granule index, in the layouts seen in the requests.
+ */
+public enum BoxLayouts {
+
+    /** consecutive scenes of one pass, overlapping */
+    TRACK {
+        @Override
+        ReferencedEnvelope box(int i, int count, Random random) {
+            double x = 10 + i * 0.15;
+            double y = 35 + i * 0.45;
+            return envelope(x, y, 0.5);
+        }
+    },
+
+    /** a few passes over the same areas */
+    CLUSTERED {
+        @Override
+        ReferencedEnvelope box(int i, int count, Random random) {
+            int cluster = i % 4;
+            double x = 2 + cluster * 7 + random.nextDouble();
+            double y = 33 + cluster * 2 + random.nextDouble();
+            return envelope(x, y, 0.5);
+        }
+    },
+
+    /** scenes all over the Mediterranean */
+    SCATTERED {
+        @Override
+        ReferencedEnvelope box(int i, int count, Random random) {
+            return envelope(random.nextDouble() * 35, 30 + random.nextDouble() * 15, 0.5);
+        }
+    };
+
+    abstract ReferencedEnvelope box(int i, int count, Random random);
+
+    /**
+     * @return the boxes keyed by granule path, as GranulesManager.searchBoundingBoxes
+     */
+    public Map<String, BoundingBox> generate(int count, long seed) {
+        Random random = new Random(seed);
+        Map<String, BoundingBox> boxes = new LinkedHashMap<String, BoundingBox>();
+        for (int i = 0; i < count; i++) {
+            boxes.put("/data/mosaic/" + FixtureMosaic.granuleName(i), box(i, count, random));
+        }
+        return boxes;
+    }
+
+    private static ReferencedEnvelope envelope(double x, double y, double size) {
+        return new ReferencedEnvelope(x, x + size, y, y + size, DefaultGeographicCRS.WGS84);
+    }
+}
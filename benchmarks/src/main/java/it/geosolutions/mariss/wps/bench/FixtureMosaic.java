@@ -0,0 +1,272 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.bench;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.time.FastDateFormat;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Generate an image mosaic like the MARISS ones, so that the benchmarks run offline: small
+ * GeoTIFF granules named with their acquisition time, the shapefile index, the mosaic
+ * .properties and the timeregex.properties. The granules follow satellite passes over the
+ * Mediterranean, a few scenes in a row along a track.
+ * <p>
+ * The mosaics are generated once in the fixtures directory and reused by the next runs.
+ */
+public class FixtureMosaic {
+
+    public static final String TIME_REGEX = "[0-9]{8}T[0-9]{6}";
+
+    private static final FastDateFormat NAME_TIME = FastDateFormat.getInstance("yyyyMMdd'T'HHmmss",
+            TimeZone.getTimeZone("UTC"));
+
+    /** 2012-01-01T00:00:00Z */
+    private static final long FIRST_ACQUISITION = 1325376000000L;
+
+    private static final double SCENE_SIZE = 0.5;
+
+    private static final int SCENES_PER_PASS = 8;
+
+    private final File directory;
+
+    private final List<String> granuleNames;
+
+    private FixtureMosaic(File directory, List<String> granuleNames) {
+        this.directory = directory;
+        this.granuleNames = granuleNames;
+    }
+
+    /**
+     * @return the mosaic directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the file names of all the granules, in acquisition order
+     */
+    public List<String> getGranuleNames() {
+        return granuleNames;
+    }
+
+    /**
+     * @return count granule names picked at random, without repetitions
+     */
+    public List<String> pickGranules(int count, long seed) {
+        List<String> names = new ArrayList<String>(granuleNames);
+        Collections.shuffle(names, new Random(seed));
+        return new ArrayList<String>(names.subList(0, Math.min(count, names.size())));
+    }
+
+    /**
+     * The fixtures directory, the {@code fixtures.dir} system property or target/fixtures.
+     */
+    public static File getFixturesDirectory() {
+        return new File(System.getProperty("fixtures.dir", "target/fixtures"));
+    }
+
+    /**
+     * Open the mosaic, generating it the first time.
+     *
+     * @param granules the number of granules
+     * @param granuleSize the width and height of the granules, in pixels
+     */
+    public static synchronized FixtureMosaic get(int granules, int granuleSize) throws IOException {
+        String name = "mosaic_" + granules + "_" + granuleSize;
+        File dir = new File(getFixturesDirectory(), name);
+        File complete = new File(dir, ".complete");
+        if (!complete.exists()) {
+            FileUtils.deleteDirectory(dir);
+            generate(dir, name, granules, granuleSize);
+            FileUtils.touch(complete);
+        }
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < granules; i++) {
+            names.add(granuleName(i));
+        }
+        return new FixtureMosaic(dir, names);
+    }
+
+    static String granuleName(int i) {
+        return "S1_" + NAME_TIME.format(acquisitionTime(i)) + "_" + i + ".tif";
+    }
+
+    /**
+     * Four passes a day, a scene every 20 seconds.
+     */
+    static Date acquisitionTime(int i) {
+        return new Date(FIRST_ACQUISITION + (i / SCENES_PER_PASS) * 6 * 3600000L + (i % SCENES_PER_PASS) * 20000L);
+    }
+
+    /**
+     * The footprint of a granule: the passes start at a random place and go north east.
+     */
+    static ReferencedEnvelope footprint(int i) {
+        Random pass = new Random(i / SCENES_PER_PASS);
+        double x = 0 + pass.nextDouble() * 30;
+        double y = 32 + pass.nextDouble() * 8;
+        int step = i % SCENES_PER_PASS;
+        x += step * SCENE_SIZE * 0.3;
+        y += step * SCENE_SIZE * 0.9;
+        return new ReferencedEnvelope(x, x + SCENE_SIZE, y, y + SCENE_SIZE, DefaultGeographicCRS.WGS84);
+    }
+
+    private static void generate(File dir, String name, int granules, int granuleSize) throws IOException {
+        if (!dir.mkdirs()) {
+            throw new IOException("Unable to create the fixture directory '" + dir + "'");
+        }
+        GridCoverageFactory factory = new GridCoverageFactory();
+        for (int i = 0; i < granules; i++) {
+            GridCoverage2D coverage = factory.create(name, createImage(granuleSize, i), footprint(i));
+            GeoTiffWriter writer = new GeoTiffWriter(new File(dir, granuleName(i)));
+            try {
+                writer.write(coverage, null);
+            } finally {
+                writer.dispose();
+                coverage.dispose(true);
+            }
+        }
+        writeIndex(dir, name, granules);
+
+        Properties mosaic = new Properties();
+        mosaic.setProperty("Name", name);
+        mosaic.setProperty("Levels", SCENE_SIZE / granuleSize + "," + SCENE_SIZE / granuleSize);
+        mosaic.setProperty("LevelsNum", "1");
+        mosaic.setProperty("LocationAttribute", "location");
+        mosaic.setProperty("TimeAttribute", "time");
+        mosaic.setProperty("AbsolutePath", "false");
+        mosaic.setProperty("Caching", "false");
+        mosaic.setProperty("ExpandToRGB", "false");
+        mosaic.setProperty("Heterogeneous", "false");
+        mosaic.setProperty("SuggestedSPI", "it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReaderSpi");
+        store(mosaic, new File(dir, name + ".properties"));
+
+        Properties timeRegex = new Properties();
+        timeRegex.setProperty("regex", TIME_REGEX);
+        store(timeRegex, new File(dir, "timeregex.properties"));
+    }
+
+    /**
+     * A SAR like image: a smooth sea with speckle noise and a few bright ships.
+     */
+    public static BufferedImage createImage(int size, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = image.getRaster();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                raster.setSample(x, y, 0, 40 + (x + y) % 16 + random.nextInt(8));
+            }
+        }
+        for (int ship = 0; ship < 4; ship++) {
+            int sx = random.nextInt(size);
+            int sy = random.nextInt(size);
+            for (int y = sy; y < Math.min(size, sy + 3); y++) {
+                for (int x = sx; x < Math.min(size, sx + 3); x++) {
+                    raster.setSample(x, y, 0, 250);
+                }
+            }
+        }
+        return image;
+    }
+
+    private static void writeIndex(File dir, String name, int granules) throws IOException {
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName(name);
+        tb.setCRS(DefaultGeographicCRS.WGS84);
+        tb.add("the_geom", Polygon.class);
+        tb.add("location", String.class);
+        tb.add("time", Date.class);
+        SimpleFeatureType type = tb.buildFeatureType();
+
+        ShapefileDataStore store = new ShapefileDataStore(new File(dir, name + ".shp").toURI().toURL());
+        try {
+            store.createSchema(type);
+            Transaction transaction = new DefaultTransaction("fixture");
+            FeatureWriter<SimpleFeatureType, SimpleFeature> writer = store.getFeatureWriterAppend(
+                    store.getTypeNames()[0], transaction);
+            try {
+                for (int i = 0; i < granules; i++) {
+                    SimpleFeature feature = writer.next();
+                    feature.setAttribute("the_geom", JTS.toGeometry(footprint(i)));
+                    feature.setAttribute("location", granuleName(i));
+                    feature.setAttribute("time", acquisitionTime(i));
+                    writer.write();
+                }
+                transaction.commit();
+            } finally {
+                writer.close();
+                transaction.close();
+            }
+        } finally {
+            store.dispose();
+        }
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Generate the mosaics ahead of the benchmarks: {@code FixtureMosaic <granules> <size>}.
+     */
+    public static void main(String[] args) throws IOException {
+        int granules = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        FixtureMosaic mosaic = get(granules, size);
+        System.out.println("Mosaic of " + granules + " granules in " + mosaic.getDirectory());
+    }
+}
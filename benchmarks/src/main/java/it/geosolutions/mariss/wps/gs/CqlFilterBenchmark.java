@@ -0,0 +1,88 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import it.geosolutions.mariss.wps.bench.BoxLayouts;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.opengis.geometry.BoundingBox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The CQL filter of the vector data requests: time interval plus the granule bounding boxes,
+ * and the XML GetFeature sent when the URL is too long.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CqlFilterBenchmark {
+
+    private static final String MIN_TIME = "2012-01-01T00:00:00Z";
+
+    private static final String MAX_TIME = "2012-03-31T23:59:59Z";
+
+    @Param({ "10", "100", "1000" })
+    int boxes;
+
+    @Param({ "TRACK", "CLUSTERED", "SCATTERED" })
+    BoxLayouts layout;
+
+    private Map<String, BoundingBox> bboxMap;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        new DownloadProcess(null).setGeomName("wkb_geometry");
+        bboxMap = layout.generate(boxes, 42);
+    }
+
+    @Benchmark
+    public String encodedFilter() {
+        return DownloadProcess.buildCQLFilterMinMaxIntervalAndGranulesBBox(MIN_TIME, MAX_TIME, bboxMap);
+    }
+
+    @Benchmark
+    public String plainFilter() {
+        return DownloadProcess.buildCQLFilter(MIN_TIME, MAX_TIME, bboxMap);
+    }
+
+    @Benchmark
+    public String getFeatureXml() {
+        return GetFeatureXmlBuilder.build("mariss", "http://mariss.geo-solutions.it", "ship_detections",
+                "shape-zip", "wkb_geometry", "2012-01-01T00:00:00", "2012-03-31T23:59:59",
+                new BBoxFilterPlanner().plan(bboxMap.values()));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import it.geosolutions.mariss.wps.bench.FixtureMosaic;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The check of the requested granules on a simulated network file system, each access paying
+ * the configured latency. A tenth of the names do not exist.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GranuleValidatorBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    int granules;
+
+    /** microseconds per file access, 0 for the local disk */
+    @Param({ "0", "500" })
+    int latency;
+
+    @Param({ "1", "8" })
+    int threads;
+
+    private File mosaicDir;
+
+    private List<String> names;
+
+    private ExecutorService executor;
+
+    private GranuleValidator validator;
+
+    private Pattern pattern;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // only the names are checked, empty files are enough
+        mosaicDir = new File(FixtureMosaic.getFixturesDirectory(), "granules_" + granules);
+        names = new ArrayList<String>();
+        for (int i = 0; i < granules; i++) {
+            String name = "S1_" + String.format("201201%02dT%06d", 1 + i % 28, i % 240000) + "_" + i + ".tif";
+            names.add(name);
+            if (i % 10 != 0) {
+                FileUtils.touch(new File(mosaicDir, name));
+            }
+        }
+        pattern = Pattern.compile(FixtureMosaic.TIME_REGEX);
+        executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        final long latencyNanos = TimeUnit.MICROSECONDS.toNanos(latency);
+        validator = new GranuleValidator(executor, threads) {
+            @Override
+            protected boolean isAccessible(File f) {
+                pause(latencyNanos);
+                return super.isAccessible(f);
+            }
+
+            @Override
+            protected String[] list(File dir) {
+                pause(latencyNanos);
+                return super.list(dir);
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public GranuleValidator.Result validate() {
+        return validator.validate(mosaicDir, names, pattern.matcher(""));
+    }
+
+    private static void pause(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import it.geosolutions.mariss.wps.bench.FixtureMosaic;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.geometry.BoundingBox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The granule index of a mosaic: the cost of opening it, of the first lookup of the requested
+ * granules and of a lookup served by the cached catalog, against the scan of the whole catalog
+ * done before the index. The mosaics are generated on their first run, the 1M granules one
+ * takes a while and a few GB of disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GranulesManagerBenchmark {
+
+    @Param({ "10000", "100000", "1000000" })
+    int granules;
+
+    @Param({ "10", "100", "1000" })
+    int requested;
+
+    private File mosaicDir;
+
+    private List<String> names;
+
+    private GranulesManager warm;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        FixtureMosaic mosaic = FixtureMosaic.get(granules, 16);
+        mosaicDir = mosaic.getDirectory();
+        names = mosaic.pickGranules(requested, 42);
+        GranuleCatalogCache.getInstance().clear();
+        warm = new GranulesManager(mosaicDir);
+        if (warm.searchBoundingBoxes(names).size() != names.size()) {
+            throw new IllegalStateException("The fixture mosaic misses some granules");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        GranuleCatalogCache.getInstance().clear();
+    }
+
+    /**
+     * Open the index, as after a restart or a change of the mosaic.
+     */
+    @Benchmark
+    public GranulesManager indexLoad() throws IOException {
+        GranuleCatalogCache.getInstance().invalidate(mosaicDir);
+        return new GranulesManager(mosaicDir);
+    }
+
+    /**
+     * Open the index and query the granules.
+     */
+    @Benchmark
+    public Map<String, BoundingBox> searchCold() throws IOException {
+        GranuleCatalogCache.getInstance().invalidate(mosaicDir);
+        return new GranulesManager(mosaicDir).searchBoundingBoxes(names);
+    }
+
+    /**
+     * The granules already looked up by a previous request.
+     */
+    @Benchmark
+    public Map<String, BoundingBox> searchWarm() {
+        return warm.searchBoundingBoxes(names);
+    }
+
+    /**
+     * The lookup before the index: every granule of the catalog, already in memory, is matched
+     * splitting its URL and searching the name in the requested list.
+     */
+    @Benchmark
+    public Map<String, BoundingBox> linearScan(FullCatalog catalog) {
+        Map<String, BoundingBox> bboxMap = new HashMap<String, BoundingBox>();
+        for (int i = 0; i < catalog.urls.size(); i++) {
+            URL url = catalog.urls.get(i);
+            String[] urlSplitted = url.toString().split("/");
+            if (names.contains(urlSplitted[urlSplitted.length - 1])) {
+                bboxMap.put(url.getFile(), catalog.bboxes.get(i));
+            }
+        }
+        return bboxMap;
+    }
+
+    /**
+     * The URLs and the footprints of all the granules, what the catalog held in memory before
+     * the index. Read straight from the index shapefile, opening a granule descriptor for each
+     * of a million granules would dominate the setup.
+     */
+    @State(Scope.Benchmark)
+    public static class FullCatalog {
+
+        final List<URL> urls = new ArrayList<URL>();
+
+        final List<BoundingBox> bboxes = new ArrayList<BoundingBox>();
+
+        @Setup(Level.Trial)
+        public void load(GranulesManagerBenchmark benchmark) throws IOException {
+            File index = GranulesManager.findIndexFile(benchmark.mosaicDir);
+            ShapefileDataStore store = new ShapefileDataStore(index.toURI().toURL());
+            try {
+                SimpleFeatureIterator it = store.getFeatureSource().getFeatures().features();
+                try {
+                    while (it.hasNext()) {
+                        SimpleFeature f = it.next();
+                        String location = (String) f.getAttribute("location");
+                        urls.add(new File(benchmark.mosaicDir, location).toURI().toURL());
+                        bboxes.add(f.getBounds());
+                    }
+                } finally {
+                    it.close();
+                }
+            } finally {
+                store.dispose();
+            }
+            if (urls.size() != benchmark.granules) {
+                throw new IllegalStateException("The fixture index has " + urls.size()
+                        + " granules instead of " + benchmark.granules);
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import it.geosolutions.mariss.wps.bench.FixtureMosaic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The archive of a download: GeoTIFF rasters of various sizes, copied from disk, plus the
+ * shapefile and KMZ vector outputs, streamed from memory. The archive is discarded, so the
+ * numbers are the encoding cost only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OutputResourcesPPIOBenchmark {
+
+    /** the side of each raster, in pixels */
+    @Param({ "1024", "4096" })
+    int rasterSize;
+
+    @Param({ "1", "8" })
+    int rasters;
+
+    /** the features of each vector output */
+    @Param({ "1000", "100000" })
+    int features;
+
+    @Param({ "1", "4" })
+    int compressionThreads;
+
+    private final List<File> rasterFiles = new ArrayList<File>();
+
+    private byte[] shapeZip;
+
+    private byte[] kmz;
+
+    private OutputResourcesPPIO ppio;
+
+    private OutputResourceArchiver archiver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File dir = new File(FixtureMosaic.getFixturesDirectory(), "rasters_" + rasterSize);
+        GridCoverageFactory factory = new GridCoverageFactory();
+        for (int i = 0; i < rasters; i++) {
+            File f = new File(dir, "raster_" + i + ".tif");
+            if (!f.exists()) {
+                FileUtils.forceMkdir(dir);
+                ReferencedEnvelope envelope = new ReferencedEnvelope(i, i + 1, 35, 36, DefaultGeographicCRS.WGS84);
+                GridCoverage2D coverage = factory.create("raster", FixtureMosaic.createImage(rasterSize, i), envelope);
+                GeoTiffWriter writer = new GeoTiffWriter(f);
+                try {
+                    writer.write(coverage, null);
+                } finally {
+                    writer.dispose();
+                    coverage.dispose(true);
+                }
+            }
+            rasterFiles.add(f);
+        }
+        shapeZip = createVectorZip(features, "ships.dbf", 42);
+        kmz = createVectorZip(features, "doc.kml", 43);
+
+        archiver = new OutputResourceArchiver();
+        archiver.setCompressionThreads(compressionThreads);
+        ppio = new OutputResourcesPPIO();
+        ppio.setArchiver(archiver);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        archiver.dispose();
+    }
+
+    @Benchmark
+    public void encode() throws Exception {
+        OutputResource resources = new OutputResource();
+        for (File f : rasterFiles) {
+            resources.addUndeletableResource(f);
+        }
+        resources.addStreamResource(new MemorySource("ships.zip", shapeZip));
+        resources.addStreamResource(new MemorySource("ships.kmz", kmz));
+        ppio.encode(resources, new NullOutputStream());
+    }
+
+    /**
+     * A ZIP holding a text table of ship detections, about 100 bytes per feature.
+     */
+    private static byte[] createVectorZip(int features, String entry, long seed) throws IOException {
+        Random random = new Random(seed);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bytes);
+        zos.putNextEntry(new ZipEntry(entry));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < features; i++) {
+            sb.setLength(0);
+            sb.append(i).append(';').append(random.nextDouble() * 35).append(';')
+                    .append(30 + random.nextDouble() * 15).append(';').append(random.nextInt(400))
+                    .append(";2012-01-").append(1 + random.nextInt(28)).append("T12:00:00Z;")
+                    .append(random.nextDouble()).append('\n');
+            zos.write(sb.toString().getBytes("UTF-8"));
+        }
+        zos.closeEntry();
+        zos.close();
+        return bytes.toByteArray();
+    }
+
+    private static class MemorySource implements StreamSource {
+
+        private final String name;
+
+        private final byte[] data;
+
+        MemorySource(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSizeHint() {
+            return data.length;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(data);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+import org.opengis.geometry.BoundingBox;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.operation.union.CascadedPolygonUnion;
+
+/**
+ * Plan the spatial part of the vector data filter from the granules bounding boxes. One BBOX per
+ * granule makes huge filters, the planner considers three forms and keeps the cheapest:
+ * <ul>
+ * <li>the bounding boxes with the contained ones dropped and the overlapping or adjacent ones
+ * merged as long as the merge adds little area, as an OR of BBOX</li>
+ * <li>the exact union of the bounding boxes, as a single INTERSECTS with a (Multi)Polygon</li>
+ * <li>the envelope of all the bounding boxes, as a single BBOX</li>
+ * </ul>
+ * The cost of a form is the area it selects relative to the exact union, an estimate of the
+ * features read, plus a weight for each term the datastore has to evaluate. Every form selects
+ * at least the features of the per granule BBOX filter.
+ */
+class BBoxFilterPlanner {
+
+    static final Logger LOGGER = Logging.getLogger(BBoxFilterPlanner.class);
+
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    private static final Comparator<Envelope> MIN_X_ORDER = new Comparator<Envelope>() {
+        public int compare(Envelope e1, Envelope e2) {
+            return Double.compare(e1.getMinX(), e2.getMinX());
+        }
+    };
+
+    /** the extra area a merge of two boxes may add, relative to the merged box */
+    private double mergeTolerance = 0.1;
+
+    /** the cost of one more BBOX term, relative to selecting the whole union area again */
+    private double termWeight = 0.01;
+
+    void setMergeTolerance(double mergeTolerance) {
+        this.mergeTolerance = mergeTolerance;
+    }
+
+    void setTermWeight(double termWeight) {
+        this.termWeight = termWeight;
+    }
+
+    /**
+     * @return the spatial filter, empty if there are no bounding boxes
+     */
+    Plan plan(Collection<BoundingBox> bboxes) {
+
+        List<Envelope> envelopes = new ArrayList<Envelope>();
+        for (BoundingBox bbox : bboxes) {
+            envelopes.add(new Envelope(bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(), bbox.getMaxY()));
+        }
+        if (envelopes.size() <= 1) {
+            return new Plan(envelopes);
+        }
+
+        Envelope total = new Envelope();
+        for (Envelope env : envelopes) {
+            if (env.getWidth() == 0 || env.getHeight() == 0) {
+                // no area to compare, just merge the boxes
+                return new Plan(merge(envelopes));
+            }
+            total.expandToInclude(env);
+        }
+        Geometry union = union(envelopes);
+        double exactArea = union.getArea();
+
+        List<Envelope> merged = merge(envelopes);
+        double mergedCost = cost(union(merged).getArea(), exactArea, merged.size());
+
+        // four polygon vertices cost about as much as a box
+        int polygonTerms = Math.max(1, (union.getNumPoints() - union.getNumGeometries()) / 4);
+        double unionCost = cost(exactArea, exactArea, polygonTerms);
+
+        double totalCost = cost(total.getArea(), exactArea, 1);
+
+        Plan filter;
+        if (totalCost <= mergedCost && totalCost <= unionCost) {
+            filter = new Plan(Collections.singletonList(total));
+        } else if (mergedCost <= unionCost) {
+            filter = new Plan(merged);
+        } else {
+            filter = new Plan(union);
+        }
+        LOGGER.fine("Spatial filter planned from " + envelopes.size() + " boxes: envelope cost "
+                + totalCost + ", " + merged.size() + " boxes cost " + mergedCost
+                + ", union cost " + unionCost);
+        return filter;
+    }
+
+    private double cost(double area, double exactArea, int terms) {
+        return area / exactArea + termWeight * terms;
+    }
+
+    /**
+     * Drop the boxes contained in others and merge the ones that intersect or touch when their
+     * envelope does not add more than the tolerated area. The result covers all the input boxes.
+     */
+    List<Envelope> merge(List<Envelope> envelopes) {
+        List<Envelope> result = new ArrayList<Envelope>(envelopes);
+        Collections.sort(result, MIN_X_ORDER);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < result.size(); i++) {
+                Envelope a = result.get(i);
+                for (int j = i + 1; j < result.size(); j++) {
+                    Envelope b = result.get(j);
+                    if (b.getMinX() > a.getMaxX()) {
+                        // sorted by minX, no later box can touch a
+                        break;
+                    }
+                    if (!a.intersects(b)) {
+                        continue;
+                    }
+                    Envelope env = new Envelope(a);
+                    env.expandToInclude(b);
+                    Envelope common = a.intersection(b);
+                    double covered = a.getArea() + b.getArea() - common.getArea();
+                    if (env.getArea() - covered <= mergeTolerance * env.getArea()) {
+                        result.set(i, env);
+                        result.remove(j);
+                        a = env;
+                        changed = true;
+                        j = i;
+                    }
+                }
+            }
+            if (changed) {
+                Collections.sort(result, MIN_X_ORDER);
+            }
+        }
+        return result;
+    }
+
+    private static Geometry union(List<Envelope> envelopes) {
+        List<Geometry> polygons = new ArrayList<Geometry>();
+        for (Envelope env : envelopes) {
+            polygons.add(GEOMETRY_FACTORY.toGeometry(env));
+        }
+        return CascadedPolygonUnion.union(polygons);
+    }
+
+    /**
+     * The planned spatial filter: either an OR of BBOX or a single INTERSECTS.
+     */
+    static class Plan {
+
+        private final List<Envelope> boxes;
+
+        private final Geometry geometry;
+
+        Plan(List<Envelope> boxes) {
+            this.boxes = boxes;
+            this.geometry = null;
+        }
+
+        Plan(Geometry geometry) {
+            this.boxes = Collections.emptyList();
+            this.geometry = geometry;
+        }
+
+        boolean isEmpty() {
+            return geometry == null && boxes.isEmpty();
+        }
+
+        List<Envelope> getBoxes() {
+            return boxes;
+        }
+
+        /**
+         * @return the geometry of the INTERSECTS, null for a BBOX filter
+         */
+        Geometry getGeometry() {
+            return geometry;
+        }
+
+        /**
+         * @return the filter in CQL, an empty String if there are no bounding boxes
+         */
+        String toCQL(String geomName) {
+            if (geometry != null) {
+                return "INTERSECTS(" + geomName + "," + geometry.toText() + ")";
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Envelope env : boxes) {
+                if (sb.length() > 0) {
+                    sb.append(" OR ");
+                }
+                // BBOX(wkb_geometry,9.887190592840616,37.981477602075785,10.310190592840616,38.38117760207579)
+                sb.append("BBOX(");
+                sb.append(geomName);
+                sb.append(",");
+                sb.append(env.getMinX());
+                sb.append(",");
+                sb.append(env.getMinY());
+                sb.append(",");
+                sb.append(env.getMaxX());
+                sb.append(",");
+                sb.append(env.getMaxY());
+                sb.append(")");
+            }
+            return sb.toString();
+        }
+    }
+}
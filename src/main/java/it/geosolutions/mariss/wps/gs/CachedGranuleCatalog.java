@@ -0,0 +1,257 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.gce.imagemosaic.GranuleDescriptor;
+import org.geotools.gce.imagemosaic.MosaicConfigurationBean;
+import org.geotools.gce.imagemosaic.Utils;
+import org.geotools.gce.imagemosaic.catalog.GranuleCatalog;
+import org.geotools.util.logging.Logging;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.PropertyName;
+
+/**
+ * An open granule catalog held by {@link GranuleCatalogCache}, together with the stamps of the
+ * files it has been read from.
+ * <p>
+ * Granules are never loaded all together: the requested file names are pushed down to the index
+ * as a filter on the location attribute, so only the matching granules are materialized. The
+ * granules found are remembered in a file name index (the last segment of the granule URL),
+ * bounded by {@link #MAX_FILE_NAMES} with the least recently used names dropped first. The misses
+ * are not remembered: the stamps of a datastore index only watch datastore.properties, a granule
+ * harvested after a miss must be found by the next query.
+ * <p>
+ * The catalog is disposed when the entry has been evicted from the cache and no request is using
+ * it anymore.
+ */
+class CachedGranuleCatalog {
+
+    static final Logger LOGGER = Logging.getLogger(CachedGranuleCatalog.class);
+
+    private static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2(null);
+
+    /** Max number of file names pushed down in a single query */
+    static final int QUERY_CHUNK_SIZE = 256;
+
+    /** Max number of file names in the index of the granules found */
+    static final int MAX_FILE_NAMES = 65536;
+
+    private static final String WILDCARD = "*";
+
+    private static final String SINGLE_CHAR = "?";
+
+    private static final String ESCAPE = "!";
+
+    private final List<FileStamp> stamps;
+
+    private final GranuleCatalog catalog;
+
+    private final String typeName;
+
+    private final String locationAttribute;
+
+    private final Map<String, List<GranuleDescriptor>> granulesByFileName = new LinkedHashMap<String, List<GranuleDescriptor>>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<GranuleDescriptor>> eldest) {
+            return size() > MAX_FILE_NAMES;
+        }
+    };
+
+    private int users;
+
+    private boolean retired;
+
+    private boolean disposed;
+
+    CachedGranuleCatalog(List<FileStamp> stamps, GranuleCatalog catalog,
+            MosaicConfigurationBean config) throws IOException {
+        this.stamps = stamps;
+        this.catalog = catalog;
+        this.typeName = catalog.getType().getTypeName();
+        String location = config != null ? config.getLocationAttribute() : null;
+        this.locationAttribute = StringUtils.isBlank(location) ? Utils.DEFAULT_LOCATION_ATTRIBUTE
+                : location;
+    }
+
+    boolean isStale() {
+        for (FileStamp stamp : stamps) {
+            if (stamp.isChanged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Search the granules whose URL ends with one of the provided file names.
+     *
+     * @return the granules found keyed by file name, names without a granule are left out. Null
+     *         if the catalog has been disposed meanwhile and the caller must get a fresh entry
+     *         from the cache.
+     */
+    Map<String, List<GranuleDescriptor>> getGranules(Collection<String> fileNames)
+            throws IOException {
+        if (!acquire()) {
+            return null;
+        }
+        try {
+            Map<String, List<GranuleDescriptor>> found = new LinkedHashMap<String, List<GranuleDescriptor>>();
+            List<String> missing = new ArrayList<String>();
+            synchronized (granulesByFileName) {
+                for (String fileName : fileNames) {
+                    List<GranuleDescriptor> granules = granulesByFileName.get(fileName);
+                    if (granules == null) {
+                        missing.add(fileName);
+                    } else {
+                        found.put(fileName, granules);
+                    }
+                }
+            }
+            for (int i = 0; i < missing.size(); i += QUERY_CHUNK_SIZE) {
+                List<String> chunk = missing.subList(i,
+                        Math.min(i + QUERY_CHUNK_SIZE, missing.size()));
+                Map<String, List<GranuleDescriptor>> queried = query(chunk);
+                synchronized (granulesByFileName) {
+                    for (Map.Entry<String, List<GranuleDescriptor>> el : queried.entrySet()) {
+                        // the misses are queried again next time
+                        if (!el.getValue().isEmpty()) {
+                            granulesByFileName.put(el.getKey(), el.getValue());
+                            found.put(el.getKey(), el.getValue());
+                        }
+                    }
+                }
+            }
+            return found;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Load from the index only the granules whose location ends with one of the names. The
+     * filter may return a superset (the location matched as a path suffix), the granule URL is
+     * checked afterwards as the file name lookup always did.
+     */
+    private Map<String, List<GranuleDescriptor>> query(List<String> fileNames)
+            throws IOException {
+        Map<String, List<GranuleDescriptor>> result = new HashMap<String, List<GranuleDescriptor>>();
+        List<Filter> filters = new ArrayList<Filter>(fileNames.size() * 3);
+        PropertyName location = FF.property(locationAttribute);
+        for (String fileName : fileNames) {
+            result.put(fileName, Collections.<GranuleDescriptor> emptyList());
+            String escaped = escapeLikePattern(fileName);
+            filters.add(FF.equals(location, FF.literal(fileName)));
+            filters.add(FF.like(location, WILDCARD + "/" + escaped, WILDCARD, SINGLE_CHAR, ESCAPE));
+            filters.add(FF.like(location, WILDCARD + "\\" + escaped, WILDCARD, SINGLE_CHAR, ESCAPE));
+        }
+        long start = System.currentTimeMillis();
+        Collection<GranuleDescriptor> granules = catalog.getGranules(new Query(typeName, FF
+                .or(filters)));
+        int matched = 0;
+        for (GranuleDescriptor granule : granules) {
+            String fileName = getFileName(granule);
+            List<GranuleDescriptor> sameName = result.get(fileName);
+            if (sameName == null) {
+                continue;
+            }
+            if (sameName.isEmpty()) {
+                // the same file name in different subdirs is unusual, don't waste space for it
+                sameName = new ArrayList<GranuleDescriptor>(1);
+                result.put(fileName, sameName);
+            }
+            sameName.add(granule);
+            matched++;
+        }
+        LOGGER.fine("Queried " + fileNames.size() + " granule names on '" + typeName
+                + "', found " + matched + " granules in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    static String getFileName(GranuleDescriptor granule) {
+        String url = granule.getGranuleUrl().toString();
+        return url.substring(url.lastIndexOf('/') + 1);
+    }
+
+    private static String escapeLikePattern(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 4);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '*' || c == '?' || c == '!') {
+                sb.append(ESCAPE);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private synchronized boolean acquire() {
+        if (disposed) {
+            return false;
+        }
+        users++;
+        return true;
+    }
+
+    private synchronized void release() {
+        users--;
+        disposeIfUnused();
+    }
+
+    /**
+     * Called by the cache when the entry is evicted or reloaded, the catalog is disposed as soon
+     * as the running queries are over.
+     */
+    synchronized void retire() {
+        retired = true;
+        disposeIfUnused();
+    }
+
+    private void disposeIfUnused() {
+        if (retired && users == 0 && !disposed) {
+            disposed = true;
+            try {
+                catalog.dispose();
+            } catch (Exception e) {
+                LOGGER.warning("Error disposing the granule catalog '" + typeName + "': "
+                        + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.io.File;
+import java.util.Properties;
+
+/**
+ * The state of an asynchronous download. It is saved next to the archive in the jobs directory
+ * so the finished downloads survive a restart.
+ */
+public class DownloadJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED
+    }
+
+    private final String id;
+
+    private final File archive;
+
+    private volatile Status status = Status.QUEUED;
+
+    private volatile float progress;
+
+    private volatile String error;
+
+    private final long created;
+
+    private volatile long updated;
+
+    DownloadJob(String id, File archive) {
+        this.id = id;
+        this.archive = archive;
+        this.created = System.currentTimeMillis();
+        this.updated = created;
+    }
+
+    private DownloadJob(String id, File archive, long created) {
+        this.id = id;
+        this.archive = archive;
+        this.created = created;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the ZIP file, complete only when the status is {@link Status#COMPLETED}
+     */
+    public File getArchive() {
+        return archive;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the completion percentage, 0 to 100
+     */
+    public float getProgress() {
+        return progress;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the time of the last status change
+     */
+    public long getUpdated() {
+        return updated;
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+
+    void setProgress(float progress) {
+        this.progress = progress;
+    }
+
+    void setStatus(Status status) {
+        this.status = status;
+        this.updated = System.currentTimeMillis();
+        if (status == Status.COMPLETED) {
+            this.progress = 100;
+        }
+    }
+
+    void fail(String error) {
+        this.error = error;
+        setStatus(Status.FAILED);
+    }
+
+    Properties toProperties() {
+        Properties props = new Properties();
+        props.setProperty("id", id);
+        props.setProperty("status", status.name());
+        props.setProperty("progress", String.valueOf(progress));
+        props.setProperty("created", String.valueOf(created));
+        props.setProperty("updated", String.valueOf(updated));
+        if (error != null) {
+            props.setProperty("error", error);
+        }
+        return props;
+    }
+
+    static DownloadJob fromProperties(Properties props, File archive) {
+        DownloadJob job = new DownloadJob(props.getProperty("id"), archive, Long.parseLong(props
+                .getProperty("created")));
+        job.status = Status.valueOf(props.getProperty("status"));
+        job.progress = Float.parseFloat(props.getProperty("progress", "0"));
+        job.updated = Long.parseLong(props.getProperty("updated"));
+        job.error = props.getProperty("error");
+        return job;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geotools.util.logging.Logging;
+import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.servlet.mvc.AbstractController;
+
+/**
+ * Expose the asynchronous downloads:
+ * <ul>
+ * <li>{@code GET .../downloadjobs/<id>/status} the job status as a properties document</li>
+ * <li>{@code GET .../downloadjobs/<id>} the archive, a single byte range can be requested to
+ * resume an interrupted transfer</li>
+ * </ul>
+ */
+public class DownloadJobController extends AbstractController {
+
+    static final Logger LOGGER = Logging.getLogger(DownloadJobController.class);
+
+    private static final Pattern PATH = Pattern.compile(".*/downloadjobs/([^/]+?)(\\.zip)?(/status)?/?");
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final DownloadJobManager manager;
+
+    public DownloadJobController(DownloadJobManager manager) {
+        this.manager = manager;
+        setSupportedMethods(new String[] { METHOD_GET, METHOD_HEAD });
+    }
+
+    @Override
+    protected ModelAndView handleRequestInternal(HttpServletRequest request,
+            HttpServletResponse response) throws Exception {
+
+        Matcher m = PATH.matcher(request.getRequestURI());
+        DownloadJob job = m.matches() ? manager.getJob(m.group(1)) : null;
+        if (job == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown download job");
+            return null;
+        }
+        if (m.group(3) != null) {
+            writeStatus(job, response);
+        } else if (job.getStatus() != DownloadJob.Status.COMPLETED) {
+            response.sendError(HttpServletResponse.SC_CONFLICT, "The download job is "
+                    + job.getStatus());
+        } else {
+            writeArchive(job, request, response);
+        }
+        return null;
+    }
+
+    private void writeStatus(DownloadJob job, HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        Properties props = job.toProperties();
+        PrintWriter writer = response.getWriter();
+        // plain key=value lines, easier to parse than the escaped Properties.store output
+        for (String key : new String[] { "id", "status", "progress", "created", "updated", "error" }) {
+            String value = props.getProperty(key);
+            if (value != null) {
+                writer.append(key).append('=').append(value).append('\n');
+            }
+        }
+        writer.flush();
+    }
+
+    private void writeArchive(DownloadJob job, HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+
+        File archive = job.getArchive();
+        long length = archive.length();
+        long first = 0;
+        long last = length - 1;
+
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + archive.getName()
+                + "\"");
+        response.setDateHeader("Last-Modified", archive.lastModified());
+
+        String range = request.getHeader("Range");
+        if (range != null) {
+            Matcher rm = RANGE.matcher(range.trim());
+            if (!rm.matches() || (rm.group(1).length() == 0 && rm.group(2).length() == 0)) {
+                // multiple ranges or other units are not supported, send the whole file
+                rm = null;
+            }
+            if (rm != null) {
+                if (rm.group(1).length() == 0) {
+                    // suffix range, the last N bytes
+                    first = Math.max(0, length - Long.parseLong(rm.group(2)));
+                } else {
+                    first = Long.parseLong(rm.group(1));
+                    if (rm.group(2).length() > 0) {
+                        last = Math.min(last, Long.parseLong(rm.group(2)));
+                    }
+                }
+                if (first >= length || first > last) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + length);
+            }
+        }
+        long count = last - first + 1;
+        response.setHeader("Content-Length", String.valueOf(count));
+        if ("HEAD".equals(request.getMethod())) {
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(archive, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            OutputStream out = response.getOutputStream();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = first;
+            while (count > 0) {
+                long sent = channel.transferTo(position, count, target);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
+                count -= sent;
+            }
+            out.flush();
+        } finally {
+            raf.close();
+        }
+        LOGGER.fine("Download job " + job.getId() + " sent bytes " + first + "-" + last);
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import it.geosolutions.mariss.wps.monitor.CounterSource;
+import it.geosolutions.mariss.wps.ppio.OutputResource;
+import it.geosolutions.mariss.wps.ppio.OutputResourceArchiver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Run the asynchronous downloads. Each job builds its archive in the jobs directory as
+ * {@code <id>.zip}, its status is saved in {@code <id>.properties}. The finished jobs are
+ * reloaded on startup and removed once their time to live has expired.
+ */
+public class DownloadJobManager implements CounterSource {
+
+    static final Logger LOGGER = Logging.getLogger(DownloadJobManager.class);
+
+    private static final Pattern JOB_ID = Pattern.compile("[0-9a-fA-F\\-]{36}");
+
+    /** share of the progress given to the production of the outputs, the rest is the archive */
+    private static final float PRODUCTION_SHARE = 20;
+
+    private final Map<String, DownloadJob> jobs = new ConcurrentHashMap<String, DownloadJob>();
+
+    private File jobsDirectory;
+
+    private OutputResourceArchiver archiver;
+
+    private int threads = 2;
+
+    private long timeToLive = 24 * 60 * 60;
+
+    private long cleanupInterval = 10 * 60;
+
+    private ExecutorService executor;
+
+    private ScheduledExecutorService cleaner;
+
+    /**
+     * @param jobsDirectory where the archives and their status are stored
+     */
+    public void setJobsDirectory(String jobsDirectory) {
+        this.jobsDirectory = new File(jobsDirectory);
+    }
+
+    /**
+     * @param archiver writes the ZIP, the same used by the WPS responses
+     */
+    public void setArchiver(OutputResourceArchiver archiver) {
+        this.archiver = archiver;
+    }
+
+    /**
+     * @param threads the max number of asynchronous downloads running at the same time
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param timeToLive how many seconds a finished download is kept
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @param cleanupInterval how often, in seconds, the expired downloads are searched
+     */
+    public void setCleanupInterval(long cleanupInterval) {
+        this.cleanupInterval = cleanupInterval;
+    }
+
+    /**
+     * Reload the jobs of the previous run and start the cleanup, called by the application
+     * context.
+     */
+    public void init() {
+        if (jobsDirectory == null) {
+            throw new IllegalStateException("The jobs directory is not configured");
+        }
+        if (archiver == null) {
+            archiver = new OutputResourceArchiver();
+        }
+        if (!jobsDirectory.isDirectory() && !jobsDirectory.mkdirs()) {
+            throw new IllegalStateException("Unable to create the jobs directory '"
+                    + jobsDirectory + "'");
+        }
+        File[] files = jobsDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(".properties")) {
+                    reload(f);
+                } else if (name.endsWith(".part")) {
+                    // an archive interrupted by the shutdown
+                    f.delete();
+                }
+            }
+        }
+        LOGGER.info("Reloaded " + jobs.size() + " download jobs from '" + jobsDirectory + "'");
+
+        executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("DownloadJob"));
+        cleaner = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+                "DownloadJob-cleaner"));
+        cleaner.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                cleanup();
+            }
+        }, cleanupInterval, cleanupInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the running jobs, called by the application context on close.
+     */
+    public void dispose() {
+        if (cleaner != null) {
+            cleaner.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Queue a download.
+     *
+     * @param task produces the resources to archive
+     * @return the new job
+     */
+    public DownloadJob submit(final Callable<OutputResource> task) {
+        String id = UUID.randomUUID().toString();
+        final DownloadJob job = new DownloadJob(id, new File(jobsDirectory, id + ".zip"));
+        jobs.put(id, job);
+        save(job);
+        executor.execute(new Runnable() {
+            public void run() {
+                execute(job, task);
+            }
+        });
+        LOGGER.info("Download job " + id + " queued");
+        return job;
+    }
+
+    /**
+     * @return the job, null if the id is unknown or the job has expired
+     */
+    public DownloadJob getJob(String id) {
+        if (id == null || !JOB_ID.matcher(id).matches()) {
+            return null;
+        }
+        return jobs.get(id);
+    }
+
+    /**
+     * The jobs known, by status.
+     */
+    public void collectCounters(Map<String, Number> counters) {
+        int[] counts = new int[DownloadJob.Status.values().length];
+        for (DownloadJob job : jobs.values()) {
+            counts[job.getStatus().ordinal()]++;
+        }
+        for (DownloadJob.Status status : DownloadJob.Status.values()) {
+            counters.put("jobs." + status.name().toLowerCase(), counts[status.ordinal()]);
+        }
+    }
+
+    private void execute(final DownloadJob job, Callable<OutputResource> task) {
+        long start = System.currentTimeMillis();
+        job.setStatus(DownloadJob.Status.RUNNING);
+        save(job);
+        File part = new File(jobsDirectory, job.getId() + ".zip.part");
+        OutputResource resources = null;
+        try {
+            resources = task.call();
+            job.setProgress(PRODUCTION_SHARE);
+
+            OutputStream os = new FileOutputStream(part);
+            try {
+                archiver.write(resources, os, new OutputResourceArchiver.Listener() {
+                    public void progress(long bytesDone, long bytesTotal) {
+                        if (bytesTotal > 0) {
+                            job.setProgress(PRODUCTION_SHARE + (100 - PRODUCTION_SHARE)
+                                    * bytesDone / bytesTotal);
+                        }
+                    }
+                });
+            } finally {
+                os.close();
+            }
+            if (!part.renameTo(job.getArchive())) {
+                throw new IOException("Unable to rename the archive to '" + job.getArchive()
+                        + "'");
+            }
+            job.setStatus(DownloadJob.Status.COMPLETED);
+            LOGGER.info("Download job " + job.getId() + " completed in "
+                    + (System.currentTimeMillis() - start) + " ms, "
+                    + job.getArchive().length() + " bytes");
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Download job " + job.getId() + " failed", e);
+            part.delete();
+            job.fail(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+        } finally {
+            if (resources != null) {
+                resources.release();
+            }
+            save(job);
+        }
+    }
+
+    /**
+     * Remove the finished jobs older than the time to live.
+     */
+    void cleanup() {
+        long expired = System.currentTimeMillis() - timeToLive * 1000;
+        for (DownloadJob job : jobs.values()) {
+            if (job.isFinished() && job.getUpdated() < expired) {
+                jobs.remove(job.getId());
+                if (job.getArchive().exists() && !job.getArchive().delete()) {
+                    LOGGER.warning("File '" + job.getArchive().getName() + "' cannot be deleted...");
+                }
+                getStatusFile(job.getId()).delete();
+                LOGGER.info("Download job " + job.getId() + " expired");
+            }
+        }
+    }
+
+    private File getStatusFile(String id) {
+        return new File(jobsDirectory, id + ".properties");
+    }
+
+    private void save(DownloadJob job) {
+        File f = getStatusFile(job.getId());
+        File tmp = new File(jobsDirectory, job.getId() + ".properties.tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            job.toProperties().store(out, null);
+            out.close();
+            out = null;
+            // replace the previous status in one step, the file is never seen half written
+            if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+                LOGGER.warning("Unable to save the status of the download job " + job.getId());
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Unable to save the status of the download job " + job.getId() + ": "
+                    + e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    LOGGER.severe(e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void reload(File f) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            Properties props = new Properties();
+            props.load(in);
+            String id = props.getProperty("id");
+            DownloadJob job = DownloadJob.fromProperties(props, new File(jobsDirectory, id + ".zip"));
+            if (!job.isFinished()) {
+                job.fail("The download has been interrupted by a server restart");
+                save(job);
+            } else if (job.getStatus() == DownloadJob.Status.COMPLETED
+                    && !job.getArchive().exists()) {
+                job.fail("The archive has been removed");
+                save(job);
+            }
+            jobs.put(id, job);
+        } catch (Exception e) {
+            LOGGER.warning("Skip the invalid download job status '" + f.getName() + "': "
+                    + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    LOGGER.severe(e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
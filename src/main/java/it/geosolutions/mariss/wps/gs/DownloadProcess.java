@@ -20,48 +20,66 @@
  */
 package it.geosolutions.mariss.wps.gs;
 
+import it.geosolutions.mariss.wps.monitor.DownloadMetrics;
 import it.geosolutions.mariss.wps.ppio.OutputResource;
+import it.geosolutions.mariss.wps.ppio.StreamSource;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.SimpleHttpConnectionManager;
+import org.apache.commons.httpclient.NameValuePair;
 import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.NamespaceInfo;
 import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
-import org.geotools.gce.imagemosaic.properties.time.TimeParser;
+import org.geotools.filter.text.cql2.CQLException;
+import org.geotools.filter.text.ecql.ECQL;
 import org.geotools.process.ProcessException;
 import org.geotools.process.factory.DescribeParameter;
 import org.geotools.process.factory.DescribeProcess;
 import org.geotools.process.factory.DescribeResult;
 import org.geotools.process.gs.GSProcess;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.util.logging.Logging;
+import org.opengis.filter.Filter;
 import org.opengis.geometry.BoundingBox;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.util.ProgressListener;
+
+import com.vividsolutions.jts.geom.Geometry;
 
 /**
  * @author DamianoG
@@ -79,6 +97,38 @@ public class DownloadProcess implements GSProcess {
     private Catalog catalog;
     
     private static String geomName;
+    
+    private static final BBoxFilterPlanner BBOX_PLANNER = new BBoxFilterPlanner();
+    
+    private static final DownloadMetrics METRICS = DownloadMetrics.getInstance();
+    
+    private boolean inProcessVectorExtraction;
+    
+    private int vectorThreads = 4;
+    
+    private long vectorTimeout = 600;
+    
+    private ExecutorService vectorExecutor;
+    
+    private int validationThreads = 8;
+    
+    private ExecutorService validationExecutor;
+    
+    private GranuleValidator granuleValidator;
+    
+    private VectorHttpClient httpClient;
+    
+    private boolean ownHttpClient;
+    
+    private DownloadJobManager jobManager;
+    
+    private DownloadResultCache resultCache;
+    
+    private DownloadScheduler scheduler;
+    
+    private int postRequestThreshold = 2048;
+    
+    private boolean streamVectorData = true;
 
     public DownloadProcess(Catalog catalog) {
         this.catalog = catalog;
@@ -99,6 +149,86 @@ public class DownloadProcess implements GSProcess {
         this.geomName = geomName;
     }
     
+    /**
+     * @param inProcessVectorExtraction if true the ship detections are read straight from the catalog, otherwise they are downloaded from the WFS and WMS services of baseURL
+     */
+    public void setInProcessVectorExtraction(boolean inProcessVectorExtraction) {
+        this.inProcessVectorExtraction = inProcessVectorExtraction;
+    }
+    
+    /**
+     * @param vectorThreads the max number of vector outputs produced at the same time by all the running downloads
+     */
+    public void setVectorThreads(int vectorThreads) {
+        this.vectorThreads = vectorThreads;
+    }
+    
+    /**
+     * @param vectorTimeout how many seconds a download waits for its vector outputs before failing
+     */
+    public void setVectorTimeout(long vectorTimeout) {
+        this.vectorTimeout = vectorTimeout;
+    }
+    
+    /**
+     * @param validationThreads the threads checking the granules of large requests, shared by all the downloads
+     */
+    public void setValidationThreads(int validationThreads) {
+        this.validationThreads = validationThreads;
+    }
+    
+    /**
+     * @param httpClient the pooled client of the WFS and WMS requests
+     */
+    public synchronized void setHttpClient(VectorHttpClient httpClient) {
+        this.httpClient = httpClient;
+        this.ownHttpClient = false;
+    }
+    
+    /**
+     * @param jobManager runs the asynchronous downloads, if not set only synchronous downloads are allowed
+     */
+    public void setJobManager(DownloadJobManager jobManager) {
+        this.jobManager = jobManager;
+    }
+    
+    /**
+     * @param postRequestThreshold the vector data are requested with a POST once the GET URL would be longer than this
+     */
+    public void setPostRequestThreshold(int postRequestThreshold) {
+        this.postRequestThreshold = postRequestThreshold;
+    }
+    
+    /**
+     * @param streamVectorData if true, the default, the vector outputs are written in the archive while they are fetched, a file holds
+     *        the rest of an output after a failure only; otherwise they are staged in the output directory before the archive, with the
+     *        vector timeout, and a failure is reported before the response starts
+     */
+    public void setStreamVectorData(boolean streamVectorData) {
+        this.streamVectorData = streamVectorData;
+    }
+    
+    /**
+     * @param resultCache reuses the archives of identical requests, if not set every request builds its archive
+     */
+    public void setResultCache(DownloadResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+    
+    /**
+     * @param scheduler queues the downloads exceeding its limits, if not set all the downloads run at once
+     */
+    public void setScheduler(DownloadScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+    
+    /**
+     * @param granuleCatalogCacheSize the max number of mosaic granule indexes kept in memory
+     */
+    public void setGranuleCatalogCacheSize(int granuleCatalogCacheSize){
+        GranuleCatalogCache.getInstance().setMaxEntries(granuleCatalogCacheSize);
+    }
+    
     /**
      * TODO improve doc This process take as input a workspace name and a List of filenames then search some related resources on the catalog...
      * 
@@ -113,9 +243,29 @@ public class DownloadProcess implements GSProcess {
             @DescribeParameter(name = "Workspace", min = 0, description = "Target workspace (default is the system default)") String workspace,
             @DescribeParameter(name = "ImageMosaic Store Name", min = 1, description = "The Image mosaic store name ") String imStoreName,
             @DescribeParameter(name = "Ship Detection Layer", min = 1, description = "The layer name of the ship detection") String shipDetectionLayer,
-            @DescribeParameter(name = "Granule Names", min = 1, collectionType = String.class, description = "The filenames of the granules") List<String> granuleNames) {
+            @DescribeParameter(name = "Granule Names", min = 1, collectionType = String.class, description = "The filenames of the granules") List<String> granuleNames,
+            @DescribeParameter(name = "AOI", min = 0, description = "The area of interest, the rasters are cut to its bounding box. Longitude/latitude WGS84 unless the geometry has a reference system") Geometry aoi,
+            @DescribeParameter(name = "Overview Level", min = 0, description = "The resolution level of the mosaic to download the rasters at, 0 is the native resolution") Integer overviewLevel,
+            @DescribeParameter(name = "Resolution", min = 0, description = "The pixel size to download the rasters at, in the units of the mosaic reference system") Double resolution,
+            @DescribeParameter(name = "Asynchronous", min = 0, description = "If true the archive is built in background, the result describes where to follow and download it") Boolean asynchronous,
+            ProgressListener monitor) {
+
+        // an asynchronous download is timed until its submission, the job is timed by its stages
+        DownloadMetrics.Timer timer = METRICS.start(DownloadMetrics.EXECUTE);
+        try {
+            OutputResource result = doExecute(minTime, maxTime, workspace, imStoreName, shipDetectionLayer,
+                    granuleNames, aoi, overviewLevel, resolution, asynchronous, monitor);
+            timer.stop();
+            return result;
+        } finally {
+            timer.close();
+        }
+    }
+
+    private OutputResource doExecute(String minTime, String maxTime, String workspace, String imStoreName,
+            String shipDetectionLayer, List<String> granuleNames, Geometry aoi, Integer overviewLevel, Double resolution,
+            Boolean asynchronous, ProgressListener monitor) {
 
-        
         if(granuleNames.size() == 1){
             String granules[] = granuleNames.get(0).split(";");
             granuleNames = Arrays.asList(granules);
@@ -130,136 +280,728 @@ public class DownloadProcess implements GSProcess {
 
         OutputResource outputResources = new OutputResource();
 
-        // first off, decide what is the target store
         WorkspaceInfo ws;
-        if (workspace != null) {
-            ws = catalog.getWorkspaceByName(workspace);
-            if (ws == null) {
-                throw new ProcessException("Could not find workspace '" + workspace + "'");
+        CoverageStoreInfo storeInfo;
+        File mosaicDir;
+        DownloadMetrics.Timer timer = METRICS.start(DownloadMetrics.CATALOG_LOOKUP);
+        try {
+            // first off, decide what is the target store
+            if (workspace != null) {
+                ws = catalog.getWorkspaceByName(workspace);
+                if (ws == null) {
+                    throw new ProcessException("Could not find workspace '" + workspace + "'");
+                }
+            } else {
+                ws = catalog.getDefaultWorkspace();
+                if (ws == null) {
+                    throw new ProcessException(
+                            "The catalog is empty, could not find a default workspace");
+                }
             }
-        } else {
-            ws = catalog.getDefaultWorkspace();
-            if (ws == null) {
-                throw new ProcessException(
-                        "The catalog is empty, could not find a default workspace");
+            LOGGER.fine("Workspace loaded");
+
+            // ok, find the image mosaic store
+            storeInfo = catalog.getCoverageStoreByName(ws.getName(), imStoreName);
+            if (storeInfo == null) {
+                throw new ProcessException("Could not find store '" + imStoreName + "' in workspace '"
+                        + workspace + "'");
             }
+            LOGGER.fine("ImageMosaic store loaded");
+
+            // retrieve the mosaic path
+            String mosaicURL = storeInfo.getURL();
+            mosaicDir = new File(mosaicURL);
+            if (!mosaicDir.canRead() || !mosaicDir.isDirectory()) {
+                throw new ProcessException("Probles occurred when try to access to the mosaic dir'"
+                        + mosaicURL + "', please check if it is accessible.");
+            }
+            LOGGER.fine("Mosaic Path found");
+            timer.stop();
+        } finally {
+            timer.close();
         }
-        LOGGER.fine("Workspace loaded");
 
-        // ok, find the image mosaic store
-        CoverageStoreInfo storeInfo;
-        storeInfo = catalog.getCoverageStoreByName(ws.getName(), imStoreName);
-        if (storeInfo == null) {
-            throw new ProcessException("Could not find store '" + imStoreName + "' in workspace '"
-                    + workspace + "'");
+        GranuleValidator.Result granules;
+        timer = METRICS.start(DownloadMetrics.GRANULE_VALIDATION);
+        try {
+            // Retrieve the timeregexProperties to extract time info from the filename
+            Matcher m = MosaicTimeConfig.get(mosaicDir).newMatcher();
+
+            // Put the provided file into the resource map and extract the time from the file name
+            granules = getGranuleValidator().validate(mosaicDir, granuleNames, m);
+            timer.stop();
+        } finally {
+            timer.close();
+        }
+        List<String> acceptedGranules = granules.names;
+        final List<File> rasters = granules.files;
+        // the whole granules are archived as they are, the subsets are written once the download is admitted
+        double[] targetResolution = getTargetResolution(mosaicDir, overviewLevel, resolution);
+        final RasterSubsetter subsetter = aoi != null || targetResolution != null ? new RasterSubsetter(aoi,
+                aoi != null ? getCRS(aoi) : null, targetResolution) : null;
+        if (subsetter == null) {
+            for (File f : rasters) {
+                outputResources.addUndeletableResource(f);
+            }
+            int counter = rasters.size();
+            LOGGER.info("Added " + counter + " raster resources to resources Map.");
+        }
+
+        final String wsName = ws.getName();
+        // the dispatcher request is bound to this thread, resolve the URL before going async
+        final String localBaseURL = getBaseURL();
+
+        if (resultCache != null) {
+            String key = buildCacheKey(wsName, imStoreName, shipDetectionLayer, minTime, maxTime, mosaicDir, acceptedGranules, subsetter);
+            File cached = resultCache.get(key);
+            if (cached != null) {
+                final OutputResource hit = new OutputResource();
+                hit.setArchive(cached);
+                if (Boolean.TRUE.equals(asynchronous) && jobManager != null) {
+                    return describeJob(jobManager.submit(new Callable<OutputResource>() {
+                        public OutputResource call() {
+                            return hit;
+                        }
+                    }), localBaseURL);
+                }
+                return hit;
+            }
+            outputResources.setArchiveCopy(resultCache.newCopy(key));
+        }
+        if (Boolean.TRUE.equals(asynchronous) && jobManager == null) {
+            throw new ProcessException("The asynchronous downloads are not enabled");
         }
-        LOGGER.fine("ImageMosaic store loaded");
 
-        // retrieve the mosaic path
-        String mosaicURL = storeInfo.getURL();
-        File mosaicDir = new File(mosaicURL);
-        if (!mosaicDir.canRead() || !mosaicDir.isDirectory()) {
-            throw new ProcessException("Probles occurred when try to access to the mosaic dir'"
-                    + mosaicURL + "', please check if it is accessible.");
+        // The granules index is shared by the WFS and the WMS requests, search it just once
+        Map<String,BoundingBox> bboxMap;
+        timer = METRICS.start(DownloadMetrics.GRANULE_INDEX);
+        try {
+            GranulesManager gm = new GranulesManager(mosaicDir);
+            bboxMap = gm.searchBoundingBoxes(granuleNames);
+            timer.stop();
+        } finally {
+            timer.close();
+        }
+
+        // a full queue rejects the download before any work, the place is freed once the archive is written
+        final DownloadScheduler.Ticket ticket;
+        if (scheduler != null) {
+            long bytes = 0;
+            if (subsetter == null) {
+                for (File f : granules.files) {
+                    bytes += f.length();
+                }
+            } else {
+                // a subset is a fraction of its granule, do not hold it back by the whole size.
+                // The index is keyed by the absolute granule paths, a granule not found is charged in full
+                double[][] levels = targetResolution != null ? GranulesManager.getResolutionLevels(mosaicDir) : null;
+                double[] nativeResolution = levels != null && levels.length > 0 ? levels[0] : null;
+                for (File f : granules.files) {
+                    bytes += subsetter.estimateSize(f, bboxMap.get(f.getAbsolutePath()), nativeResolution);
+                }
+            }
+            ticket = scheduler.submit(bytes);
+            outputResources.addReleaseHook(ticket);
+        } else {
+            ticket = null;
         }
-        LOGGER.fine("Mosaic Path found");
+        try {
+            if (Boolean.TRUE.equals(asynchronous)) {
+                final OutputResource resources = outputResources;
+                final Map<String,BoundingBox> bboxes = bboxMap;
+                final String layer = shipDetectionLayer;
+                final String min = minTime;
+                final String max = maxTime;
+                DownloadJob job = jobManager.submit(new Callable<OutputResource>() {
+                    public OutputResource call() throws Exception {
+                        try {
+                            // the job waits for its turn, not the WPS request
+                            if (ticket != null) {
+                                ticket.await();
+                            }
+                            if (subsetter != null) {
+                                addRasterData(resources, rasters, subsetter);
+                            }
+                            addVectorData(resources, wsName, layer, min, max, bboxes, localBaseURL, null);
+                            return resources;
+                        } catch (Exception e) {
+                            resources.release();
+                            throw e;
+                        }
+                    }
+                });
+                return describeJob(job, localBaseURL);
+            }
 
-        // Retrieve the timeregexProperties to extract time info from the filename
-        Pattern timeregex = loadTimeRegex(mosaicDir);
+            if (ticket != null) {
+                ticket.await();
+            }
+            if (subsetter != null) {
+                addRasterData(outputResources, rasters, subsetter);
+            }
+            addVectorData(outputResources, wsName, shipDetectionLayer, minTime, maxTime, bboxMap, localBaseURL, monitor);
+            return outputResources;
+        } catch (RuntimeException e) {
+            outputResources.release();
+            throw e;
+        }
+    }
 
-        List<String> timeList = new ArrayList<String>();
-        // Put the provided file into the resource map and extract the time from the file name
+    /**
+     * Cut the granules to the AOI at the requested resolution and add the subsets to the resources, the granules
+     * outside the AOI are skipped.
+     */
+    private void addRasterData(OutputResource outputResources, List<File> granules, RasterSubsetter subsetter) {
+
+        final File dir = new File(outputDirectory, "rasters" + UUID.randomUUID());
+        if (!dir.mkdirs()) {
+            throw new ProcessException("Unable to create the directory '" + dir + "'");
+        }
+        // the subsets are deleted once archived, the directory once the download is over
+        outputResources.addReleaseHook(new Runnable() {
+            public void run() {
+                FileUtils.deleteQuietly(dir);
+            }
+        });
         int counter = 0;
-        for (String el : granuleNames) {
+        long bytes = 0;
+        DownloadMetrics.Timer timer = METRICS.start(DownloadMetrics.RASTER_SUBSET);
+        try {
+            for (File granule : granules) {
+                File target = new File(dir, FilenameUtils.getBaseName(granule.getName()) + ".tif");
+                try {
+                    if (subsetter.subset(granule, target)) {
+                        outputResources.addDeletableResource(target);
+                        bytes += target.length();
+                        counter++;
+                    }
+                } catch (IOException e) {
+                    throw new ProcessException("Unable to subset the granule '" + granule.getName() + "'", e);
+                }
+            }
+            timer.stop(bytes);
+        } finally {
+            timer.close();
+        }
+        LOGGER.info("Added " + counter + " raster subsets of " + granules.size() + " granules to resources Map.");
+    }
 
-            File f = new File(mosaicDir, el);
-            if (!f.exists() || !f.isFile() || !f.canRead()) {
-                LOGGER.warning("Problems when try access to granule '" + el
-                        + "' check if the file exist or if it is accessible. The file is skipped");
-                continue;
-            }
-            Matcher m = timeregex.matcher(el);
-            String time = null;
-            if (m.find()) {
-                time = m.group(0);
+    /**
+     * The pixel size of the requested level of the mosaic, or the requested resolution.
+     * 
+     * @return null for the native resolution
+     */
+    private static double[] getTargetResolution(File mosaicDir, Integer level, Double resolution) {
+        if (level != null && resolution != null) {
+            throw new ProcessException("Specify either the overview level or the resolution, not both");
+        }
+        if (resolution != null) {
+            if (resolution <= 0) {
+                throw new ProcessException("The resolution must be positive");
+            }
+            return new double[] { resolution, resolution };
+        }
+        if (level == null || level == 0) {
+            return null;
+        }
+        double[][] levels = GranulesManager.getResolutionLevels(mosaicDir);
+        if (levels == null) {
+            throw new ProcessException("The mosaic configuration declares no resolution levels");
+        }
+        if (level < 0 || level >= levels.length) {
+            throw new ProcessException("The overview level must be between 0 and " + (levels.length - 1));
+        }
+        return levels[level];
+    }
+
+    /**
+     * The reference system set by the WPS parser, WGS84 if missing.
+     */
+    private static CoordinateReferenceSystem getCRS(Geometry geometry) {
+        if (geometry.getUserData() instanceof CoordinateReferenceSystem) {
+            return (CoordinateReferenceSystem) geometry.getUserData();
+        }
+        return DefaultGeographicCRS.WGS84;
+    }
+
+    /**
+     * Produce the shapefile and the KMZ of the ship detections and add them to the resources.
+     */
+    private void addVectorData(OutputResource outputResources, final String wsName, final String layer, String minTime,
+            String maxTime, Map<String,BoundingBox> bboxMap, String localBaseURL, ProgressListener monitor) {
+
+        final File fZip = new File(outputDirectory, layer + UUID.randomUUID() + ".zip");
+        final File fKMZ = new File(outputDirectory, layer + UUID.randomUUID() + ".kmz");
+        List<VectorTask> vectorTasks = new ArrayList<VectorTask>();
+        List<StreamSource> streams = new ArrayList<StreamSource>();
+        if (inProcessVectorExtraction) {
+            final Filter filter;
+            DownloadMetrics.Timer timer = METRICS.start(DownloadMetrics.CQL_BUILD);
+            try {
+                filter = toFilter(buildCQLFilter(minTime, maxTime, bboxMap));
+                timer.stop();
+            } finally {
+                timer.close();
+            }
+            final VectorDataExtractor extractor = new VectorDataExtractor(catalog);
+            if (streamVectorData) {
+                // the shapefile parts are still written to a temporary directory, not their ZIP
+                streams.add(new ExtractedSource(fZip.getName(), "shapefile") {
+                    @Override
+                    void extract(OutputStream out) throws IOException {
+                        extractor.writeShapeZip(wsName, layer, filter, new File(outputDirectory), out);
+                    }
+                });
+                streams.add(new ExtractedSource(fKMZ.getName(), "kmz") {
+                    @Override
+                    void extract(OutputStream out) throws IOException {
+                        extractor.writeKmz(wsName, layer, filter, out);
+                    }
+                });
+            } else {
+                vectorTasks.add(new VectorTask("shapefile", fZip) {
+                    @Override
+                    void produce() throws Exception {
+                        extractor.writeShapeZip(wsName, layer, filter, fZip);
+                    }
+                });
+                vectorTasks.add(new VectorTask("KMZ", fKMZ) {
+                    @Override
+                    void produce() throws Exception {
+                        extractor.writeKmz(wsName, layer, filter, fKMZ);
+                    }
+                });
+            }
+        } else {
+            String cqlFilter;
+            DownloadMetrics.Timer timer = METRICS.start(DownloadMetrics.CQL_BUILD);
+            try {
+                cqlFilter = buildCQLFilterMinMaxIntervalAndGranulesBBox(minTime, maxTime, bboxMap);
+                timer.stop(cqlFilter.length());
+            } finally {
+                timer.close();
+            }
+
+            // Create the Shapefile with the selected features
+            final String urlZip = composeWFSUrl(localBaseURL, wsName, layer, cqlFilter, "shape-zip");
+            HttpVectorSource zipSource;
+            if (urlZip.length() <= postRequestThreshold) {
+                zipSource = new HttpVectorSource(fZip, "shapefile", getHttpClient()) {
+                    @Override
+                    HttpMethod createMethod() {
+                        return new GetMethod(urlZip);
+                    }
+                };
+            } else {
+                // too long for the proxies, send the filter in the body
+                final String wfsURL = localBaseURL + "/" + wsName + "/ows";
+                final String body = composeWFSRequestBody(wsName, layer, "shape-zip", minTime, maxTime, bboxMap);
+                zipSource = new HttpVectorSource(fZip, "shapefile", getHttpClient()) {
+                    @Override
+                    HttpMethod createMethod() throws IOException {
+                        PostMethod method = new PostMethod(wfsURL);
+                        method.setRequestEntity(new StringRequestEntity(body, "text/xml", "UTF-8"));
+                        return method;
+                    }
+                };
+            }
+
+            // Create the KMZ with the selected features
+            final String urlKMZ = composeWMSUrl(localBaseURL, wsName, layer, bboxMap, "kml", minTime, maxTime);
+            HttpVectorSource kmzSource;
+            if (urlKMZ.length() <= postRequestThreshold) {
+                kmzSource = new HttpVectorSource(fKMZ, "kmz", getHttpClient()) {
+                    @Override
+                    HttpMethod createMethod() {
+                        return new GetMethod(urlKMZ);
+                    }
+                };
+            } else {
+                // the KML reflector reads the same parameters from a form encoded body
+                final String kmlURL = localBaseURL + "/" + wsName + "/wms/kml";
+                final NameValuePair[] params = composeWMSParameters(wsName, layer, bboxMap, minTime, maxTime);
+                kmzSource = new HttpVectorSource(fKMZ, "kmz", getHttpClient()) {
+                    @Override
+                    HttpMethod createMethod() {
+                        PostMethod method = new PostMethod(kmlURL);
+                        method.setRequestBody(params);
+                        return method;
+                    }
+                };
+            }
+
+            if (streamVectorData) {
+                streams.add(zipSource);
+                streams.add(kmzSource);
             } else {
-                LOGGER.warning("Problems when try access to granule '"
-                        + el
-                        + "' The time is not well specified in the file name as specified in the  timeregex file");
-                continue;
+                vectorTasks.add(new StagedSourceTask("shapefile", zipSource));
+                vectorTasks.add(new StagedSourceTask("KMZ", kmzSource));
             }
-            timeList.add(time);
-            outputResources.addUndeletableResource(f);
-            LOGGER.fine("The file '" + el + "' is added");
-            counter++;
         }
-        LOGGER.info("Added " + counter + " raster resources to resources Map.");
+        if (!vectorTasks.isEmpty()) {
+            produceVectorData(vectorTasks, monitor);
+        }
+        for (VectorTask task : vectorTasks) {
+            outputResources.addDeletableResource(task.getOutput());
+        }
+        for (StreamSource source : streams) {
+            // fetched while the archive is written
+            outputResources.addStreamResource(source);
+        }
+        LOGGER.info("Added " + vectorTasks.size() + " staged and " + streams.size() + " streamed vector outputs to resources Map.");
+    }
 
-        String cqlFilter = buildCQLFilterMinMaxIntervalAndGranulesBBox(minTime, maxTime, mosaicDir, granuleNames);
+    /**
+     * Hash everything the content of the archive depends on: the request, with the granules
+     * sorted and the times normalized, and the size and last modification of the granules and of
+     * the mosaic configuration.
+     */
+    private String buildCacheKey(String wsName, String imStoreName, String layer, String minTime, String maxTime,
+            File mosaicDir, List<String> granules, RasterSubsetter subsetter) {
 
-        SimpleHttpConnectionManager httpConnectionManager = new SimpleHttpConnectionManager();
-        
-        // Create the Shapefile with the selected features
-        File fZip = new File(outputDirectory + shipDetectionLayer + UUID.randomUUID() + ".zip");
-        String urlZip = composeWFSUrl(ws.getName(), shipDetectionLayer, cqlFilter, "shape-zip");
-        downloadVectorDataFromLocalhost(urlZip, fZip, httpConnectionManager);
-        outputResources.addDeletableResource(fZip);
-        LOGGER.info("Added The shapefile to resources Map.");
-
-        // Create the KMZ with the selected features
-        File fKMZ = new File(outputDirectory + shipDetectionLayer + UUID.randomUUID() + ".kmz");
-        String urlKMZ = composeWMSUrl(ws.getName(), shipDetectionLayer, mosaicDir, granuleNames, "kml", minTime, maxTime);
-        downloadVectorDataFromLocalhost(urlKMZ, fKMZ, httpConnectionManager);
-        outputResources.addDeletableResource(fKMZ);
-        LOGGER.info("Added the KMZ to resources Map.");
-        
-        httpConnectionManager.shutdown();
-         
-        return outputResources;
+        List<String> parts = new ArrayList<String>();
+        parts.add("v1");
+        parts.add(wsName);
+        parts.add(imStoreName);
+        parts.add(layer);
+        parts.add(String.valueOf(inProcessVectorExtraction));
+        parts.add(geomName);
+        parts.add(normalizeTime(minTime));
+        parts.add(normalizeTime(maxTime));
+        if (subsetter != null) {
+            parts.add(subsetter.getCacheKey());
+        }
+
+        List<String> sorted = new ArrayList<String>(new TreeSet<String>(granules));
+        for (String el : sorted) {
+            File f = new File(mosaicDir, el);
+            parts.add(el);
+            parts.add(f.length() + "/" + f.lastModified());
+        }
+        List<File> configuration = new ArrayList<File>();
+        configuration.add(new File(mosaicDir, "timeregex.properties"));
+        configuration.add(GranulesManager.getMosaicPropertiesFile(mosaicDir));
+        try {
+            File index = GranulesManager.findIndexFile(mosaicDir);
+            configuration.add(index);
+            if (index.getName().endsWith(".shp")) {
+                configuration.add(new File(index.getParentFile(), index.getName().replaceAll("\\.shp$", ".dbf")));
+            }
+        } catch (IllegalStateException e) {
+            LOGGER.fine(e.getMessage());
+        }
+        for (File f : configuration) {
+            parts.add(f.getName());
+            parts.add(f.length() + "/" + f.lastModified());
+        }
+        return DownloadResultCache.computeKey(parts);
     }
 
-    private static Pattern loadTimeRegex(File mosaicDir) throws ProcessException {
+    /**
+     * The time as UTC ISO 8601 with milliseconds, so that equivalent writings give the same key.
+     */
+    private static String normalizeTime(String time) {
+        if (StringUtils.isBlank(time)) {
+            return "";
+        }
+        try {
+            List<Date> dates = MosaicTimeConfig.TIME_PARSER.parse(time.trim());
+            if (!dates.isEmpty()) {
+                return MosaicTimeConfig.UTC_FORMAT.format(dates.get(0));
+            }
+        } catch (ParseException e) {
+            LOGGER.fine(e.getMessage());
+        }
+        return time.trim();
+    }
 
-        FileInputStream in = null;
+    /**
+     * The result of an asynchronous download: a small properties file with the job id and the URLs
+     * of its status and of its archive.
+     */
+    private OutputResource describeJob(DownloadJob job, String localBaseURL) throws ProcessException {
+
+        String jobURL = localBaseURL + "/rest/downloadjobs/" + job.getId();
+        Properties props = new Properties();
+        props.setProperty("id", job.getId());
+        props.setProperty("status", jobURL + "/status");
+        props.setProperty("download", jobURL + ".zip");
+
+        File f = new File(outputDirectory, "download-job-" + job.getId() + ".properties");
+        OutputStream out = null;
         try {
-            File f = new File(mosaicDir, "timeregex.properties");
-            if (!f.exists() || !f.isFile() || !f.canRead()) {
-                throw new ProcessException(
-                        "The timeregex.properties file don't exist or is not accessible...");
-            }
-            in = new FileInputStream(f);
-            Properties prop = new Properties();
-            prop.load(in);
-            String regex = prop.getProperty("regex");
-            if (StringUtils.isBlank(regex)) {
-                throw new ProcessException("The timeregex.properties not contains a valid regex...");
-            }
-            Pattern p = Pattern.compile(regex);
-            LOGGER.info("Timeregex '" + regex + "' loaded");
-            return p;
+            out = new FileOutputStream(f);
+            props.store(out, "MARISS asynchronous download");
         } catch (IOException e) {
             LOGGER.severe(e.getMessage());
-            throw new ProcessException("Error while trying to access to timeregex.properties file");
+            throw new ProcessException("Unable to describe the download job " + job.getId());
         } finally {
-            if (in != null) {
+            if (out != null) {
                 try {
-                    in.close();
+                    out.close();
                 } catch (IOException e) {
                     LOGGER.severe(e.getMessage());
                 }
             }
         }
+        OutputResource result = new OutputResource();
+        result.addDeletableResource(f);
+        LOGGER.info("Download job " + job.getId() + " submitted");
+        return result;
     }
 
-    private String composeWFSUrl(String workspace, String layer, String cqlFilter, String format) {
+    /**
+     * Shuts down the vector data workers, called by the application context on close.
+     */
+    public void dispose() {
+        synchronized (this) {
+            if (vectorExecutor != null) {
+                vectorExecutor.shutdownNow();
+                vectorExecutor = null;
+            }
+            if (validationExecutor != null) {
+                validationExecutor.shutdownNow();
+                validationExecutor = null;
+                granuleValidator = null;
+            }
+            if (httpClient != null && ownHttpClient) {
+                httpClient.dispose();
+                httpClient = null;
+            }
+        }
+    }
+
+    private synchronized ExecutorService getVectorExecutor() {
+        if (vectorExecutor == null) {
+            vectorExecutor = Executors.newFixedThreadPool(vectorThreads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
 
-        String localBaseURL = baseURL;
-        if(StringUtils.isBlank(localBaseURL)){
-            Request req = Dispatcher.REQUEST.get();
-            String requestURL = req.getHttpRequest().getRequestURL().toString();
-            String requestURLArray[] = requestURL.split("/");
-            localBaseURL = "http://" + requestURLArray[2] + "/" + requestURLArray[3];
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DownloadProcess-vector-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
+        return vectorExecutor;
+    }
+
+    private synchronized VectorHttpClient getHttpClient() {
+        if (httpClient == null) {
+            // not configured, a pool with the default settings
+            httpClient = new VectorHttpClient();
+            httpClient.init();
+            ownHttpClient = true;
+        }
+        return httpClient;
+    }
+
+    private synchronized GranuleValidator getGranuleValidator() {
+        if (granuleValidator == null) {
+            if (validationThreads > 1) {
+                validationExecutor = Executors.newFixedThreadPool(validationThreads, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "DownloadProcess-validation-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            granuleValidator = new GranuleValidator(validationExecutor, validationThreads);
+        }
+        return granuleValidator;
+    }
+
+    /**
+     * Run the vector tasks in parallel and wait for all of them. As soon as one fails or the
+     * timeout expires the others are cancelled and their outputs deleted.
+     */
+    private void produceVectorData(List<VectorTask> tasks, ProgressListener monitor) throws ProcessException {
+
+        CompletionService<File> completion = new ExecutorCompletionService<File>(getVectorExecutor());
+        List<Future<File>> futures = new ArrayList<Future<File>>();
+        for (VectorTask task : tasks) {
+            futures.add(completion.submit(task));
+        }
+        long deadline = System.currentTimeMillis() + vectorTimeout * 1000;
+        boolean completed = false;
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                long remaining = deadline - System.currentTimeMillis();
+                Future<File> done = remaining > 0 ? completion.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (done == null) {
+                    throw new ProcessException("The vector data have not been produced in " + vectorTimeout + " seconds");
+                }
+                done.get();
+                if (monitor != null) {
+                    if (monitor.isCanceled()) {
+                        throw new ProcessException("The download has been cancelled");
+                    }
+                    monitor.progress(100f * (i + 1) / tasks.size());
+                }
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("Interrupted while waiting for the vector data");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ProcessException) {
+                throw (ProcessException) e.getCause();
+            }
+            LOGGER.severe(e.getCause().getMessage());
+            throw new ProcessException("error in vector data download...");
+        } finally {
+            if (!completed) {
+                for (Future<File> future : futures) {
+                    future.cancel(true);
+                }
+                for (VectorTask task : tasks) {
+                    task.getOutput().delete();
+                }
+            }
+        }
+    }
+
+    private static Filter toFilter(String cqlFilter) throws ProcessException {
+        if (StringUtils.isBlank(cqlFilter)) {
+            return Filter.INCLUDE;
+        }
+        try {
+            return ECQL.toFilter(cqlFilter);
+        } catch (CQLException e) {
+            LOGGER.severe(e.getMessage());
+            throw new ProcessException("Invalid CQL filter for the vector data '" + cqlFilter + "'");
+        }
+    }
+
+    /**
+     * Produce one of the vector outputs of the download, logging how long it took.
+     */
+    private abstract static class VectorTask implements Callable<File> {
+
+        private final String name;
+
+        private final File output;
+
+        VectorTask(String name, File output) {
+            this.name = name;
+            this.output = output;
+        }
+
+        File getOutput() {
+            return output;
+        }
+
+        abstract void produce() throws Exception;
+
+        /**
+         * @return the metrics stage of the task, null if the output is timed by its producer
+         */
+        String getStage() {
+            return DownloadMetrics.VECTOR_EXTRACT + name.toLowerCase();
+        }
+
+        public File call() throws Exception {
+            long start = System.currentTimeMillis();
+            String stage = getStage();
+            DownloadMetrics.Timer timer = stage != null ? METRICS.start(stage) : null;
+            try {
+                produce();
+            } catch (Exception e) {
+                LOGGER.warning("The " + name + " failed after " + (System.currentTimeMillis() - start) + " ms");
+                if (timer != null) {
+                    timer.close();
+                }
+                throw e;
+            }
+            if (timer != null) {
+                timer.stop(output.length());
+            }
+            LOGGER.info("The " + name + " has been produced in " + (System.currentTimeMillis() - start) + " ms, " + output.length() + " bytes");
+            return output;
+        }
+    }
+
+    /**
+     * A vector output extracted from the catalog while the archive is written.
+     */
+    private abstract static class ExtractedSource implements StreamSource {
+
+        private final String name;
+
+        private final String stage;
+
+        ExtractedSource(String name, String kind) {
+            this.name = name;
+            this.stage = DownloadMetrics.VECTOR_EXTRACT + kind;
+        }
+
+        abstract void extract(OutputStream out) throws IOException;
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSizeHint() {
+            return -1;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            DownloadMetrics.Timer timer = METRICS.start(stage);
+            try {
+                CountingOutputStream counting = new CountingOutputStream(out);
+                extract(counting);
+                timer.stop(counting.getByteCount());
+            } finally {
+                timer.close();
+            }
+        }
+    }
+
+    /**
+     * Stage a vector output fetched over HTTP in its file.
+     */
+    private static class StagedSourceTask extends VectorTask {
+
+        private final HttpVectorSource source;
+
+        StagedSourceTask(String name, HttpVectorSource source) {
+            super(name, source.getFile());
+            this.source = source;
+        }
+
+        @Override
+        String getStage() {
+            // the fetch is timed by the source
+            return null;
+        }
+
+        @Override
+        void produce() throws Exception {
+            source.fetch();
+        }
+    }
+
+    /**
+     * The configured base URL, or the one of the current OWS request.
+     */
+    private String getBaseURL() {
+        if (StringUtils.isNotBlank(baseURL)) {
+            return baseURL;
+        }
+        Request req = Dispatcher.REQUEST.get();
+        if (req == null) {
+            throw new ProcessException("The base URL is not configured and there is no request to take it from");
+        }
+        String requestURL = req.getHttpRequest().getRequestURL().toString();
+        String requestURLArray[] = requestURL.split("/");
+        return "http://" + requestURLArray[2] + "/" + requestURLArray[3];
+    }
+
+    private static String composeWFSUrl(String localBaseURL, String workspace, String layer, String cqlFilter, String format) {
+
         StringBuilder sb = new StringBuilder();
         sb.append(localBaseURL)
                 .append("/").append(workspace)
@@ -273,22 +1015,13 @@ public class DownloadProcess implements GSProcess {
         return url;
     }
     
-    private String composeWMSUrl(String workspace, String layer, File mosaicDir, List<String> granulesFileNames, String format, String minTime, String maxTime) {
+    private static String composeWMSUrl(String localBaseURL, String workspace, String layer, Map<String,BoundingBox> bboxMap, String format, String minTime, String maxTime) {
 
-        String localBaseURL = baseURL;
-        if (StringUtils.isBlank(localBaseURL)) {
-            Request req = Dispatcher.REQUEST.get();
-            String requestURL = req.getHttpRequest().getRequestURL().toString();
-            String requestURLArray[] = requestURL.split("/");
-            localBaseURL = "http://" + requestURLArray[2] + "/" + requestURLArray[3];
-        }
-        GranulesManager gm = new GranulesManager(mosaicDir);
-        Map<String,BoundingBox> bboxMap = gm.searchBoundingBoxes(granulesFileNames);
         // http://localhost:8080/geoserver/mariss/wms/kml?layers=mariss:tem_sd__1p
         StringBuilder sb = new StringBuilder();
         sb.append(localBaseURL).append("/").append(workspace).append("/wms/").append(format)
                 .append("?layers=").append(workspace).append(":").append(layer)
-                .append("&styles=point&mode=download").append("&time=").append(minTime).append("/").append(maxTime).append("&CQL_FILTER=").append(concatCqlBBOXFilters(bboxMap));
+                .append("&styles=point&mode=download").append("&time=").append(minTime).append("/").append(maxTime).append("&CQL_FILTER=").append(encodeCqlFilter(concatCqlBBOXFilters(bboxMap)));
 
         String url = sb.toString();
         LOGGER.info("URL for download the '" + format + "' file composed");
@@ -296,51 +1029,58 @@ public class DownloadProcess implements GSProcess {
         return url;
     }
 
-    private static boolean downloadVectorDataFromLocalhost(String url, File outDest, HttpConnectionManager manager)
-            throws ProcessException {
+    /**
+     * The parameters of the WMS KML request, for the form encoded POST.
+     */
+    private static NameValuePair[] composeWMSParameters(String workspace, String layer, Map<String,BoundingBox> bboxMap, String minTime, String maxTime) {
+        return new NameValuePair[] {
+                new NameValuePair("layers", workspace + ":" + layer),
+                new NameValuePair("styles", "point"),
+                new NameValuePair("mode", "download"),
+                new NameValuePair("time", minTime + "/" + maxTime),
+                new NameValuePair("CQL_FILTER", concatCqlBBOXFilters(bboxMap)) };
+    }
 
-        HttpClient client = new HttpClient(manager);
-        HttpMethod method = new GetMethod(url);
-        OutputStream out = null;
-        InputStream in = null;
-        try {
-            client.executeMethod(method);
-            out = new FileOutputStream(outDest);
-            in = method.getResponseBodyAsStream();
-            IOUtils.copy(in, out);
-        } catch (Exception e) {
-            LOGGER.severe(e.getMessage());
-            throw new ProcessException("error in vector data download...");
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    LOGGER.severe(e.getMessage());
-                }
-            }
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    LOGGER.severe(e.getMessage());
-                }
-            }
+    /**
+     * The WFS GetFeature as XML, with the same filter of the GET request.
+     */
+    private String composeWFSRequestBody(String workspace, String layer, String format, String minTime, String maxTime, Map<String,BoundingBox> bboxMap) throws ProcessException {
+        NamespaceInfo ns = catalog.getNamespaceByPrefix(workspace);
+        if (ns == null) {
+            throw new ProcessException("Could not find the namespace of workspace '" + workspace + "'");
         }
-        LOGGER.info("Vector Resource downloaded");
-        return true;
+        String[] interval = formatTimeInterval(minTime, maxTime);
+        String body = GetFeatureXmlBuilder.build(workspace, ns.getURI(), layer, format, geomName,
+                interval != null ? interval[0] : null, interval != null ? interval[1] : null,
+                BBOX_PLANNER.plan(bboxMap.values()));
+        LOGGER.info("POST request for download the '" + format + "' file composed, " + body.length() + " chars");
+        LOGGER.fine("The request is " + body);
+        return body;
     }
     
     public static String buildCQLFilterMinMaxIntervalAndGranulesBBox(/*List<String> timeList, */String minTime, String maxTime, File mosaicDir, List<String> granulesFileNames) {
 
+        GranulesManager gm = new GranulesManager(mosaicDir);
+        return buildCQLFilterMinMaxIntervalAndGranulesBBox(minTime, maxTime, gm.searchBoundingBoxes(granulesFileNames));
+    }
+    
+    public static String buildCQLFilterMinMaxIntervalAndGranulesBBox(String minTime, String maxTime, Map<String,BoundingBox> bboxMap) {
+
+        String cqlFilter = "&CQL_FILTER=" + encodeCqlFilter(buildCQLFilter(minTime, maxTime, bboxMap));
+        LOGGER.fine("The full CQL filter is " + cqlFilter);
+        return cqlFilter;
+    }
+    
+    /**
+     * Build the time interval and granules BBOX filter as plain CQL, an empty String if the time interval is not valid.
+     */
+    public static String buildCQLFilter(String minTime, String maxTime, Map<String,BoundingBox> bboxMap) {
+
         /*
          * EXAMPLE:
          * time DURING 2010-01-24T09:52:32Z/2012-02-24T22:11:33Z AND (BBOX(wkb_geometry,9.887190592840616,37.981477602075785,10.310190592840616,38.38117760207579) OR BBOX(wkb_geometry,18.716863606878906,39.50822439921374,19.130563606878905,39.899624399213735))
          */
         
-        GranulesManager gm = new GranulesManager(mosaicDir);
-        Map<String,BoundingBox> bboxMap = gm.searchBoundingBoxes(granulesFileNames);
-        
 //        TimeParser p = new TimeParser();
 //        Date min = null;
 //        Date max = null;
@@ -367,27 +1107,16 @@ public class DownloadProcess implements GSProcess {
 //            cla.add(Calendar.DAY_OF_MONTH, -1);
 //            min = cla.getTime();
 //        }
-        TimeParser p = new TimeParser();
         StringBuilder sb = new StringBuilder();
-        DateFormat formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-        Date min = null;
-        Date max = null;
-        try {
-            min = p.parse(minTime).get(0);
-            max = p.parse(maxTime).get(0);
-        } catch (ParseException e) {
-            // TODO Auto-generated catch block
-            LOGGER.severe(e.getMessage());
-        }
-        sb.append("&CQL_FILTER=");
-        if(min != null && max != null){
-            sb.append("time%20DURING%20");
-            sb.append(formatter.format(min));
+        String[] interval = formatTimeInterval(minTime, maxTime);
+        if(interval != null){
+            sb.append("time DURING ");
+            sb.append(interval[0]);
             sb.append("/");
-            sb.append(formatter.format(max));
+            sb.append(interval[1]);
             LOGGER.info("Time Interval added to CQL filter");
             if(!bboxMap.isEmpty()){
-                sb.append("%20AND%20(");
+                sb.append(" AND (");
                 sb.append(concatCqlBBOXFilters(bboxMap));
                 sb.append(")");
             }
@@ -397,40 +1126,37 @@ public class DownloadProcess implements GSProcess {
             sb.append("");
             LOGGER.info("The CQL filter is empty...");
         }
-        String cqlFilter = sb.toString();
-        LOGGER.fine("The full CQL filter is " + cqlFilter);
-        return cqlFilter;
+        return sb.toString();
     }
     
-    private static String concatCqlBBOXFilters(Map<String,BoundingBox> bboxMap){
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-        for(String el : bboxMap.keySet()){
-            if(!first){
-                sb.append("%20OR%20");
-            }
-            first = false;
-            sb.append(buildCqlBBOXFilter(bboxMap.get(el)));
+    /**
+     * The time interval as written in the filters, null if it is not valid.
+     */
+    private static String[] formatTimeInterval(String minTime, String maxTime) {
+        if (minTime == null || maxTime == null) {
+            return null;
+        }
+        try {
+            Date min = MosaicTimeConfig.TIME_PARSER.parse(minTime).get(0);
+            Date max = MosaicTimeConfig.TIME_PARSER.parse(maxTime).get(0);
+            return new String[] { MosaicTimeConfig.FILTER_FORMAT.format(min), MosaicTimeConfig.FILTER_FORMAT.format(max) };
+        } catch (ParseException e) {
+            LOGGER.severe(e.getMessage());
+            return null;
         }
-        LOGGER.info("BBOX filters added to CQL filter");
-        return sb.toString();
     }
     
-    private static String buildCqlBBOXFilter(BoundingBox bbox){
-      //BBOX(wkb_geometry,9.887190592840616,37.981477602075785,10.310190592840616,38.38117760207579)
-        StringBuilder sb = new StringBuilder();
-        sb.append("BBOX(");
-        sb.append(geomName);
-        sb.append(",");
-        sb.append(bbox.getMinX());
-        sb.append(",");
-        sb.append(bbox.getMinY());
-        sb.append(",");
-        sb.append(bbox.getMaxX());
-        sb.append(",");
-        sb.append(bbox.getMaxY());
-        sb.append(")");
-        return sb.toString();
+    /**
+     * The CQL filters are sent in the query string with just the blanks escaped.
+     */
+    private static String encodeCqlFilter(String cqlFilter){
+        return cqlFilter.replace(" ", "%20");
+    }
+    
+    private static String concatCqlBBOXFilters(Map<String,BoundingBox> bboxMap){
+        String filter = BBOX_PLANNER.plan(bboxMap.values()).toCQL(geomName);
+        LOGGER.info("BBOX filters added to CQL filter");
+        return filter;
     }
 
 }
@@ -0,0 +1,279 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import it.geosolutions.mariss.wps.monitor.CounterSource;
+import it.geosolutions.mariss.wps.ppio.OutputResource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Keep the archives of the downloads on disk, keyed by a hash of everything that defines their
+ * content, so that a repeated request is answered with the archive of the previous one. The
+ * total size is bounded, the least recently used archives are evicted first.
+ * <p>
+ * The ship detections are read from a database whose changes are not tracked by the key, the
+ * optional max age bounds how long an archive can be reused.
+ */
+public class DownloadResultCache implements CounterSource {
+
+    static final Logger LOGGER = Logging.getLogger(DownloadResultCache.class);
+
+    private static final String SUFFIX = ".zip";
+
+    /** key -> archive size, in access order */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    private File cacheDirectory;
+
+    private long maxSize = 10L * 1024 * 1024 * 1024;
+
+    private long maxAge;
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param cacheDirectory where the archives are kept
+     */
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = new File(cacheDirectory);
+    }
+
+    /**
+     * @param maxSize the max total size of the cached archives, in bytes
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * @param maxAge how many seconds an archive can be reused, 0 for no limit
+     */
+    public void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public void collectCounters(Map<String, Number> counters) {
+        counters.put("resultCache.hits", getHits());
+        counters.put("resultCache.misses", getMisses());
+        counters.put("resultCache.evictions", getEvictions());
+        counters.put("resultCache.size", getSize());
+        counters.put("resultCache.entries", getEntries());
+    }
+
+    /**
+     * Load the archives left by the previous run, oldest first. Called by the application
+     * context.
+     */
+    public synchronized void init() {
+        if (cacheDirectory == null) {
+            throw new IllegalStateException("The cache directory is not configured");
+        }
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            throw new IllegalStateException("Unable to create the cache directory '"
+                    + cacheDirectory + "'");
+        }
+        File[] files = cacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(SUFFIX)) {
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), f.length());
+                size += f.length();
+            } else if (name.endsWith(".part")) {
+                f.delete();
+            }
+        }
+        evict();
+        LOGGER.info("Download cache loaded: " + entries.size() + " archives, " + size + " bytes");
+    }
+
+    /**
+     * Hash the values that define the content of a download.
+     */
+    public static String computeKey(List<String> parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(String.valueOf(part).getBytes("UTF-8"));
+                // separator, so that ("ab","c") and ("a","bc") differ
+                digest.update((byte) 0);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the cached archive, null on a miss
+     */
+    public File get(String key) {
+        File archive = getArchive(key);
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                archive = null;
+            } else if (!archive.exists() || isExpired(archive)) {
+                remove(key);
+                archive = null;
+            }
+        }
+        if (archive == null) {
+            misses.incrementAndGet();
+            LOGGER.fine("Download cache miss " + key);
+            return null;
+        }
+        hits.incrementAndGet();
+        LOGGER.info("Download cache hit " + key);
+        return archive;
+    }
+
+    /**
+     * The copy of the archive that fills the cache while the archive is written.
+     */
+    public OutputResource.ArchiveCopy newCopy(final String key) {
+        return new OutputResource.ArchiveCopy() {
+
+            private final File part = new File(cacheDirectory, key + SUFFIX + "."
+                    + UUID.randomUUID() + ".part");
+
+            public OutputStream open() throws IOException {
+                return new FileOutputStream(part);
+            }
+
+            public void completed(boolean success) {
+                if (success) {
+                    put(key, part);
+                } else {
+                    part.delete();
+                }
+            }
+        };
+    }
+
+    private synchronized void put(String key, File part) {
+        if (part.length() > maxSize) {
+            LOGGER.info("The archive " + key + " is larger than the cache, not cached");
+            part.delete();
+            return;
+        }
+        remove(key);
+        File archive = getArchive(key);
+        if (!part.renameTo(archive)) {
+            LOGGER.warning("Unable to add the archive " + key + " to the cache");
+            part.delete();
+            return;
+        }
+        entries.put(key, archive.length());
+        size += archive.length();
+        evict();
+    }
+
+    private File getArchive(String key) {
+        return new File(cacheDirectory, key + SUFFIX);
+    }
+
+    private boolean isExpired(File archive) {
+        return maxAge > 0 && archive.lastModified() < System.currentTimeMillis() - maxAge * 1000;
+    }
+
+    private void remove(String key) {
+        Long archiveSize = entries.remove(key);
+        if (archiveSize != null) {
+            size -= archiveSize;
+            // the archive may still be streamed, on unix the data survive until it is closed
+            getArchive(key).delete();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            File archive = getArchive(entry.getKey());
+            it.remove();
+            size -= entry.getValue();
+            archive.delete();
+            evictions.incrementAndGet();
+            LOGGER.fine("Download cache evicted " + archive.getName());
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import it.geosolutions.mariss.wps.monitor.CounterSource;
+import it.geosolutions.mariss.wps.monitor.DownloadMetrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.geotools.process.ProcessException;
+import org.geotools.util.logging.Logging;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Admission control of the downloads. A download takes a {@link Ticket} once its granules are
+ * known and waits in the queue until it fits the limits on the running downloads and on the
+ * bytes they are archiving, overall and for its user. When the queue is full the download is
+ * rejected at once.
+ * <p>
+ * The queue is served in arrival order ({@link Policy#FIFO}) or ({@link Policy#PRIORITY}) the
+ * users having one of the priority roles first, then the users with fewer running downloads.
+ * A download held by the limits of its user does not hold the others back.
+ */
+public class DownloadScheduler implements CounterSource {
+
+    static final Logger LOGGER = Logging.getLogger(DownloadScheduler.class);
+
+    public enum Policy {
+        FIFO, PRIORITY
+    }
+
+    private static final String ANONYMOUS = "anonymous";
+
+    private int maxRunning = 4;
+
+    private long maxInFlightBytes;
+
+    private int maxUserRunning = 2;
+
+    private long maxUserBytes;
+
+    private int maxQueued = 50;
+
+    private long queueTimeout = 600;
+
+    private long maxLease = 6 * 60 * 60;
+
+    private long requestOverhead;
+
+    private Policy policy = Policy.FIFO;
+
+    private Set<String> priorityRoles = Collections.emptySet();
+
+    /** the waiting tickets, in arrival order */
+    private final List<Ticket> queue = new ArrayList<Ticket>();
+
+    private final List<Ticket> running = new ArrayList<Ticket>();
+
+    private long inFlightBytes;
+
+    private long sequence;
+
+    private long admitted;
+
+    private long rejected;
+
+    private long timedOut;
+
+    private long reclaimed;
+
+    private int peakQueued;
+
+    /**
+     * @param maxRunning the max number of downloads running at the same time
+     */
+    public synchronized void setMaxRunning(int maxRunning) {
+        this.maxRunning = maxRunning;
+    }
+
+    /**
+     * @param maxInFlightBytes the max bytes archived at the same time by all the downloads, 0
+     *        for no limit. A larger download runs alone.
+     */
+    public synchronized void setMaxInFlightBytes(long maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * @param maxUserRunning the max number of downloads of a user running at the same time, 0
+     *        for no limit
+     */
+    public synchronized void setMaxUserRunning(int maxUserRunning) {
+        this.maxUserRunning = maxUserRunning;
+    }
+
+    /**
+     * @param maxUserBytes the max bytes archived at the same time by the downloads of a user, 0
+     *        for no limit
+     */
+    public synchronized void setMaxUserBytes(long maxUserBytes) {
+        this.maxUserBytes = maxUserBytes;
+    }
+
+    /**
+     * @param maxQueued the max number of waiting downloads, the next ones are rejected
+     */
+    public synchronized void setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @param queueTimeout how many seconds a download waits in the queue before failing
+     */
+    public synchronized void setQueueTimeout(long queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    /**
+     * @param maxLease seconds after which a running download never released is dropped from
+     *        the limits, 0 to keep it forever
+     */
+    public synchronized void setMaxLease(long maxLease) {
+        this.maxLease = maxLease;
+    }
+
+    /**
+     * @param requestOverhead the bytes counted for each download besides its granules, the
+     *        expected size of the vector outputs
+     */
+    public synchronized void setRequestOverhead(long requestOverhead) {
+        this.requestOverhead = requestOverhead;
+    }
+
+    public synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @param priorityRoles comma separated roles served first by {@link Policy#PRIORITY}
+     */
+    public synchronized void setPriorityRoles(String priorityRoles) {
+        Set<String> roles = new HashSet<String>();
+        for (String role : priorityRoles.split(",")) {
+            if (role.trim().length() > 0) {
+                roles.add(role.trim());
+            }
+        }
+        this.priorityRoles = roles;
+    }
+
+    /**
+     * Queue a download of the current user.
+     *
+     * @param bytes the size of the granules of the download
+     * @throws ProcessException if the queue is full
+     */
+    public Ticket submit(long bytes) {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        String user = ANONYMOUS;
+        boolean priority = false;
+        if (auth != null && auth.getName() != null) {
+            user = auth.getName();
+            synchronized (this) {
+                for (GrantedAuthority authority : auth.getAuthorities()) {
+                    priority |= priorityRoles.contains(authority.getAuthority());
+                }
+            }
+        }
+        return submit(user, priority, bytes);
+    }
+
+    synchronized Ticket submit(String user, boolean priority, long bytes) {
+        Ticket ticket = new Ticket(user, priority, bytes + requestOverhead, sequence++);
+        queue.add(ticket);
+        schedule();
+        if (ticket.state == State.QUEUED && queue.size() > maxQueued) {
+            queue.remove(ticket);
+            ticket.state = State.RELEASED;
+            rejected++;
+            LOGGER.warning("Download of " + user + " rejected, " + maxQueued
+                    + " downloads are already waiting");
+            throw new ProcessException("The server is busy, " + maxQueued
+                    + " downloads are already waiting. Please retry later");
+        }
+        peakQueued = Math.max(peakQueued, queue.size());
+        return ticket;
+    }
+
+    /**
+     * The queue and the running downloads.
+     */
+    public synchronized void collectCounters(Map<String, Number> counters) {
+        counters.put("admission.queued", queue.size());
+        counters.put("admission.peakQueued", peakQueued);
+        counters.put("admission.running", running.size());
+        counters.put("admission.inFlightBytes", inFlightBytes);
+        counters.put("admission.admitted", admitted);
+        counters.put("admission.rejected", rejected);
+        counters.put("admission.timedOut", timedOut);
+        counters.put("admission.reclaimed", reclaimed);
+    }
+
+    /**
+     * Admit the waiting tickets fitting the limits.
+     */
+    private void schedule() {
+        if (maxLease > 0) {
+            long expired = System.currentTimeMillis() - maxLease * 1000;
+            for (Iterator<Ticket> it = running.iterator(); it.hasNext();) {
+                Ticket t = it.next();
+                if (t.admittedAt < expired) {
+                    it.remove();
+                    inFlightBytes -= t.bytes;
+                    t.state = State.RELEASED;
+                    reclaimed++;
+                    LOGGER.warning("Download of " + t.user + " never released, dropped after "
+                            + maxLease + " seconds");
+                }
+            }
+        }
+        List<Ticket> candidates = queue;
+        if (policy == Policy.PRIORITY) {
+            candidates = new ArrayList<Ticket>(queue);
+            Collections.sort(candidates, new Comparator<Ticket>() {
+                public int compare(Ticket t1, Ticket t2) {
+                    if (t1.priority != t2.priority) {
+                        return t1.priority ? -1 : 1;
+                    }
+                    int r1 = countRunning(t1.user);
+                    int r2 = countRunning(t2.user);
+                    if (r1 != r2) {
+                        return r1 < r2 ? -1 : 1;
+                    }
+                    return t1.sequence < t2.sequence ? -1 : (t1.sequence == t2.sequence ? 0 : 1);
+                }
+            });
+        }
+        boolean changed = false;
+        for (Ticket t : new ArrayList<Ticket>(candidates)) {
+            if (running.size() >= maxRunning) {
+                break;
+            }
+            // a large download waits for the others to finish, it is not overtaken forever
+            if (maxInFlightBytes > 0 && inFlightBytes > 0 && inFlightBytes + t.bytes > maxInFlightBytes) {
+                break;
+            }
+            if (maxUserRunning > 0 && countRunning(t.user) >= maxUserRunning) {
+                continue;
+            }
+            long userBytes = countBytes(t.user);
+            if (maxUserBytes > 0 && userBytes > 0 && userBytes + t.bytes > maxUserBytes) {
+                continue;
+            }
+            queue.remove(t);
+            running.add(t);
+            inFlightBytes += t.bytes;
+            t.state = State.RUNNING;
+            t.admittedAt = System.currentTimeMillis();
+            admitted++;
+            changed = true;
+        }
+        if (changed) {
+            notifyAll();
+        }
+    }
+
+    private int countRunning(String user) {
+        int count = 0;
+        for (Ticket t : running) {
+            if (t.user.equals(user)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long countBytes(String user) {
+        long bytes = 0;
+        for (Ticket t : running) {
+            if (t.user.equals(user)) {
+                bytes += t.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    private enum State {
+        QUEUED, RUNNING, RELEASED
+    }
+
+    /**
+     * The place of a download in the scheduler, released once its archive is written or it has
+     * failed.
+     */
+    public class Ticket implements Runnable {
+
+        private final String user;
+
+        private final boolean priority;
+
+        private final long bytes;
+
+        private final long sequence;
+
+        private State state = State.QUEUED;
+
+        private long admittedAt;
+
+        Ticket(String user, boolean priority, long bytes, long sequence) {
+            this.user = user;
+            this.priority = priority;
+            this.bytes = bytes;
+            this.sequence = sequence;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * Wait for the download to be admitted.
+         *
+         * @throws ProcessException if the queue timeout expires or the thread is interrupted,
+         *         the ticket is released
+         */
+        public void await() {
+            DownloadMetrics.Timer timer = DownloadMetrics.getInstance().start(DownloadMetrics.ADMISSION_WAIT);
+            try {
+                synchronized (DownloadScheduler.this) {
+                    long deadline = System.currentTimeMillis() + queueTimeout * 1000;
+                    while (state == State.QUEUED) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            queue.remove(this);
+                            state = State.RELEASED;
+                            timedOut++;
+                            throw new ProcessException("The download waited more than "
+                                    + queueTimeout + " seconds in the queue. Please retry later");
+                        }
+                        try {
+                            DownloadScheduler.this.wait(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            release();
+                            throw new ProcessException("The download has been interrupted while queued");
+                        }
+                    }
+                    if (state == State.RELEASED) {
+                        throw new ProcessException("The download has been dropped from the queue");
+                    }
+                }
+                timer.stop();
+            } finally {
+                timer.close();
+            }
+        }
+
+        /**
+         * Leave the queue or free the place taken, it can be called more than once.
+         */
+        public void release() {
+            synchronized (DownloadScheduler.this) {
+                if (state == State.QUEUED) {
+                    queue.remove(this);
+                } else if (state == State.RUNNING) {
+                    running.remove(this);
+                    inFlightBytes -= bytes;
+                }
+                state = State.RELEASED;
+                schedule();
+            }
+        }
+
+        public void run() {
+            release();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.io.File;
+
+/**
+ * Snapshot of the last modification time and length of a file, used to detect when a cached
+ * resource derived from that file must be reloaded. A missing file is a valid state too: it
+ * changes as soon as the file appears.
+ */
+class FileStamp {
+
+    private final File file;
+
+    private final long lastModified;
+
+    private final long length;
+
+    FileStamp(File file) {
+        this.file = file;
+        this.lastModified = file.lastModified();
+        this.length = file.length();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    boolean isChanged() {
+        return file.lastModified() != lastModified || file.length() != length;
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + "@" + lastModified + "/" + length;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.util.List;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Write a WFS 1.0.0 GetFeature request as XML, the POST equivalent of the GET request built by
+ * {@link DownloadProcess}: the time interval (exclusive, as CQL DURING) and the planned spatial
+ * filter encoded as Filter Encoding 1.0 with GML 2 geometries.
+ */
+class GetFeatureXmlBuilder {
+
+    private final StringBuilder sb = new StringBuilder();
+
+    /**
+     * @param minTime the start of the interval as written in the CQL filter, null for no time filter
+     * @param maxTime the end of the interval as written in the CQL filter
+     */
+    static String build(String prefix, String namespaceURI, String layer, String format,
+            String geomName, String minTime, String maxTime, BBoxFilterPlanner.Plan plan) {
+
+        GetFeatureXmlBuilder builder = new GetFeatureXmlBuilder();
+        builder.writeRequest(prefix, namespaceURI, layer, format, geomName, minTime, maxTime, plan);
+        return builder.sb.toString();
+    }
+
+    private void writeRequest(String prefix, String namespaceURI, String layer, String format,
+            String geomName, String minTime, String maxTime, BBoxFilterPlanner.Plan plan) {
+
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<wfs:GetFeature service=\"WFS\" version=\"1.0.0\" outputFormat=\"").append(escape(format)).append("\"");
+        sb.append(" xmlns:wfs=\"http://www.opengis.net/wfs\"");
+        sb.append(" xmlns:ogc=\"http://www.opengis.net/ogc\"");
+        sb.append(" xmlns:gml=\"http://www.opengis.net/gml\"");
+        sb.append(" xmlns:").append(prefix).append("=\"").append(escape(namespaceURI)).append("\">");
+        sb.append("<wfs:Query typeName=\"").append(prefix).append(":").append(escape(layer)).append("\">");
+
+        // same semantic of the GET request: no time, no filter at all
+        if (minTime != null && maxTime != null) {
+            sb.append("<ogc:Filter><ogc:And>");
+            writeComparison("PropertyIsGreaterThan", "time", minTime);
+            writeComparison("PropertyIsLessThan", "time", maxTime);
+            if (!plan.isEmpty()) {
+                writeSpatial(geomName, plan);
+            }
+            sb.append("</ogc:And></ogc:Filter>");
+        }
+        sb.append("</wfs:Query></wfs:GetFeature>");
+    }
+
+    private void writeComparison(String operator, String property, String literal) {
+        sb.append("<ogc:").append(operator).append(">");
+        sb.append("<ogc:PropertyName>").append(escape(property)).append("</ogc:PropertyName>");
+        sb.append("<ogc:Literal>").append(escape(literal)).append("</ogc:Literal>");
+        sb.append("</ogc:").append(operator).append(">");
+    }
+
+    private void writeSpatial(String geomName, BBoxFilterPlanner.Plan plan) {
+        Geometry geometry = plan.getGeometry();
+        if (geometry != null) {
+            sb.append("<ogc:Intersects><ogc:PropertyName>").append(escape(geomName)).append("</ogc:PropertyName>");
+            sb.append("<gml:MultiPolygon>");
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                sb.append("<gml:polygonMember>");
+                writePolygon((Polygon) geometry.getGeometryN(i));
+                sb.append("</gml:polygonMember>");
+            }
+            sb.append("</gml:MultiPolygon></ogc:Intersects>");
+            return;
+        }
+        List<Envelope> boxes = plan.getBoxes();
+        if (boxes.size() > 1) {
+            sb.append("<ogc:Or>");
+        }
+        for (Envelope env : boxes) {
+            sb.append("<ogc:BBOX><ogc:PropertyName>").append(escape(geomName)).append("</ogc:PropertyName>");
+            sb.append("<gml:Box><gml:coordinates>");
+            sb.append(env.getMinX()).append(",").append(env.getMinY()).append(" ");
+            sb.append(env.getMaxX()).append(",").append(env.getMaxY());
+            sb.append("</gml:coordinates></gml:Box></ogc:BBOX>");
+        }
+        if (boxes.size() > 1) {
+            sb.append("</ogc:Or>");
+        }
+    }
+
+    private void writePolygon(Polygon polygon) {
+        sb.append("<gml:Polygon><gml:outerBoundaryIs>");
+        writeRing(polygon.getExteriorRing());
+        sb.append("</gml:outerBoundaryIs>");
+        for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+            sb.append("<gml:innerBoundaryIs>");
+            writeRing(polygon.getInteriorRingN(i));
+            sb.append("</gml:innerBoundaryIs>");
+        }
+        sb.append("</gml:Polygon>");
+    }
+
+    private void writeRing(LineString ring) {
+        sb.append("<gml:LinearRing><gml:coordinates>");
+        Coordinate[] coordinates = ring.getCoordinates();
+        for (int i = 0; i < coordinates.length; i++) {
+            if (i > 0) {
+                sb.append(" ");
+            }
+            sb.append(coordinates[i].x).append(",").append(coordinates[i].y);
+        }
+        sb.append("</gml:coordinates></gml:LinearRing>");
+    }
+
+    private static String escape(String value) {
+        return StringEscapeUtils.escapeXml(value);
+    }
+}
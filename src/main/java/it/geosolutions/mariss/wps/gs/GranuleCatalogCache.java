@@ -0,0 +1,187 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import it.geosolutions.mariss.wps.monitor.CounterSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Process wide cache of the granule catalogs opened by {@link GranulesManager}, keyed by mosaic
+ * directory.
+ * <p>
+ * An entry is reloaded as soon as the granule index (shapefile or datastore.properties) or the
+ * mosaic .properties file changes on disk. The number of cached mosaics is bounded, the least
+ * recently used one is evicted first.
+ *
+ */
+public class GranuleCatalogCache implements CounterSource {
+
+    static final Logger LOGGER = Logging.getLogger(GranuleCatalogCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+
+    private static final GranuleCatalogCache INSTANCE = new GranuleCatalogCache(DEFAULT_MAX_ENTRIES);
+
+    private final LinkedHashMap<String, CachedGranuleCatalog> entries;
+
+    private int maxEntries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public static GranuleCatalogCache getInstance() {
+        return INSTANCE;
+    }
+
+    GranuleCatalogCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, CachedGranuleCatalog>(16, 0.75f, true);
+    }
+
+    public synchronized void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The granule catalog cache needs at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        evictExceeding();
+    }
+
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public void collectCounters(Map<String, Number> counters) {
+        counters.put("granuleCatalog.hits", getHits());
+        counters.put("granuleCatalog.misses", getMisses());
+        counters.put("granuleCatalog.evictions", getEvictions());
+        counters.put("granuleCatalog.entries", size());
+    }
+
+    /**
+     * Returns the granule catalog of the provided mosaic, opening the granule index only if it is
+     * not cached yet or if one of the files it has been built from changed.
+     */
+    CachedGranuleCatalog getEntry(File mosaicDir) throws IOException {
+        String key = mosaicDir.getCanonicalPath();
+        synchronized (this) {
+            CachedGranuleCatalog entry = entries.get(key);
+            if (entry != null && !entry.isStale()) {
+                hits.incrementAndGet();
+                return entry;
+            }
+            if (entry != null) {
+                LOGGER.info("The granule index of mosaic '" + key + "' changed, reloading it");
+                entries.remove(key).retire();
+            }
+        }
+        misses.incrementAndGet();
+
+        // load outside the lock, a slow index must not block the lookups on other mosaics
+        CachedGranuleCatalog loaded = load(mosaicDir);
+        synchronized (this) {
+            CachedGranuleCatalog current = entries.get(key);
+            if (current != null && !current.isStale()) {
+                // another request loaded it meanwhile, keep the one already published
+                loaded.retire();
+                return current;
+            }
+            if (current != null) {
+                current.retire();
+            }
+            entries.put(key, loaded);
+            evictExceeding();
+        }
+        return loaded;
+    }
+
+    public synchronized void invalidate(File mosaicDir) throws IOException {
+        CachedGranuleCatalog entry = entries.remove(mosaicDir.getCanonicalPath());
+        if (entry != null) {
+            entry.retire();
+        }
+    }
+
+    public synchronized void clear() {
+        for (CachedGranuleCatalog entry : entries.values()) {
+            entry.retire();
+        }
+        entries.clear();
+    }
+
+    private void evictExceeding() {
+        Iterator<Map.Entry<String, CachedGranuleCatalog>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            Map.Entry<String, CachedGranuleCatalog> eldest = it.next();
+            it.remove();
+            eldest.getValue().retire();
+            evictions.incrementAndGet();
+            LOGGER.fine("Granule catalog of mosaic '" + eldest.getKey() + "' evicted");
+        }
+    }
+
+    private static CachedGranuleCatalog load(File mosaicDir) throws IOException {
+        // take the stamps before reading, so a change during the load triggers a reload later
+        List<FileStamp> stamps = new ArrayList<FileStamp>();
+        File indexFile = GranulesManager.findIndexFile(mosaicDir);
+        stamps.add(new FileStamp(indexFile));
+        if (indexFile.getName().endsWith(".shp")) {
+            String baseName = indexFile.getName().substring(0, indexFile.getName().length() - 4);
+            stamps.add(new FileStamp(new File(mosaicDir, baseName + ".dbf")));
+        }
+        stamps.add(new FileStamp(GranulesManager.getMosaicPropertiesFile(mosaicDir)));
+
+        long start = System.currentTimeMillis();
+        CachedGranuleCatalog catalog = GranulesManager.openCatalog(mosaicDir, indexFile, stamps);
+        LOGGER.info("Granule index of mosaic '" + mosaicDir + "' opened in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return catalog;
+    }
+}
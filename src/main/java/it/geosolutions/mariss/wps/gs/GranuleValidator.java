@@ -0,0 +1,209 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+
+import org.geotools.process.ProcessException;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Check the requested granules: the file must be readable and its name must contain a time.
+ * On network file systems each check is a round trip, so large lists are checked on a pool of
+ * threads, and the names missing from a listing of their directory are rejected without
+ * touching them. The accepted granules and the warnings are the same, in the same order, of a
+ * check done one granule at a time.
+ */
+class GranuleValidator {
+
+    static final Logger LOGGER = Logging.getLogger(GranuleValidator.class);
+
+    private final ExecutorService executor;
+
+    private final int parallelism;
+
+    private int parallelThreshold = 64;
+
+    private int listingThreshold = 512;
+
+    /**
+     * @param executor runs the checks of large lists, null to always check on the caller thread
+     * @param parallelism the max number of checks submitted for one list
+     */
+    GranuleValidator(ExecutorService executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param parallelThreshold smaller lists are checked on the caller thread
+     */
+    void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * @param listingThreshold larger lists are first checked against the directory listings
+     */
+    void setListingThreshold(int listingThreshold) {
+        this.listingThreshold = listingThreshold;
+    }
+
+    /**
+     * The granules accepted, with the time taken from their name.
+     */
+    static class Result {
+
+        final List<String> names = new ArrayList<String>();
+
+        final List<String> times = new ArrayList<String>();
+
+        final List<File> files = new ArrayList<File>();
+    }
+
+    Result validate(File mosaicDir, List<String> granuleNames, Matcher timeMatcher) throws ProcessException {
+
+        boolean[] accessible = checkAccess(mosaicDir, granuleNames);
+
+        Result result = new Result();
+        for (int i = 0; i < granuleNames.size(); i++) {
+            String el = granuleNames.get(i);
+            if (!accessible[i]) {
+                LOGGER.warning("Problems when try access to granule '" + el
+                        + "' check if the file exist or if it is accessible. The file is skipped");
+                continue;
+            }
+            timeMatcher.reset(el);
+            if (!timeMatcher.find()) {
+                LOGGER.warning("Problems when try access to granule '"
+                        + el
+                        + "' The time is not well specified in the file name as specified in the  timeregex file");
+                continue;
+            }
+            result.names.add(el);
+            result.times.add(timeMatcher.group(0));
+            result.files.add(new File(mosaicDir, el));
+            LOGGER.fine("The file '" + el + "' is added");
+        }
+        return result;
+    }
+
+    /**
+     * Can be overridden to simulate a slow file system.
+     */
+    protected boolean isAccessible(File f) {
+        return f.exists() && f.isFile() && f.canRead();
+    }
+
+    /**
+     * @return the names in the directory, null if it cannot be listed
+     */
+    protected String[] list(File dir) {
+        return dir.list();
+    }
+
+    private boolean[] checkAccess(final File mosaicDir, final List<String> granuleNames) throws ProcessException {
+
+        final int size = granuleNames.size();
+        final boolean[] accessible = new boolean[size];
+        // the granules left to check, the ones missing from the listing are already rejected
+        final boolean[] candidate = new boolean[size];
+        Arrays.fill(candidate, true);
+        if (size >= listingThreshold) {
+            filterByListing(mosaicDir, granuleNames, candidate);
+        }
+
+        if (executor == null || size < parallelThreshold || parallelism < 2) {
+            for (int i = 0; i < size; i++) {
+                accessible[i] = candidate[i] && isAccessible(new File(mosaicDir, granuleNames.get(i)));
+            }
+            return accessible;
+        }
+
+        int chunks = Math.min(parallelism, (size + parallelThreshold - 1) / parallelThreshold);
+        int chunkSize = (size + chunks - 1) / chunks;
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int start = 0; start < size; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(size, start + chunkSize);
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    // each task writes its own slice of the array
+                    for (int i = from; i < to; i++) {
+                        accessible[i] = candidate[i] && isAccessible(new File(mosaicDir, granuleNames.get(i)));
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                // the completion of the futures makes the writes of the tasks visible
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("Interrupted while checking the granules");
+        } catch (ExecutionException e) {
+            LOGGER.severe(e.getCause().getMessage());
+            throw new ProcessException("Error while checking the granules");
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return accessible;
+    }
+
+    /**
+     * Reject the names missing from the listing of their directory, one listing per directory.
+     */
+    private void filterByListing(File mosaicDir, List<String> granuleNames, boolean[] candidate) {
+        Map<File, Set<String>> listings = new HashMap<File, Set<String>>();
+        for (int i = 0; i < granuleNames.size(); i++) {
+            File f = new File(mosaicDir, granuleNames.get(i));
+            File dir = f.getParentFile();
+            Set<String> names = listings.get(dir);
+            if (names == null && !listings.containsKey(dir)) {
+                String[] list = list(dir);
+                names = list != null ? new HashSet<String>(Arrays.asList(list)) : null;
+                listings.put(dir, names);
+            }
+            // an unlisted directory leaves the check to isAccessible
+            if (names != null && !names.contains(f.getName())) {
+                candidate[i] = false;
+            }
+        }
+    }
+}
@@ -21,8 +21,9 @@
 package it.geosolutions.mariss.wps.gs;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +37,7 @@ import org.geotools.gce.imagemosaic.GranuleDescriptor;
 import org.geotools.gce.imagemosaic.MosaicConfigurationBean;
 import org.geotools.gce.imagemosaic.Utils;
 import org.geotools.gce.imagemosaic.Utils.Prop;
+import org.geotools.gce.imagemosaic.catalog.GranuleCatalog;
 import org.geotools.gce.imagemosaic.catalog.GranuleCatalogFactory;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.util.logging.Logging;
@@ -49,18 +51,33 @@ public class GranulesManager {
 
     static final Logger LOGGER = Logging.getLogger(GranulesManager.class);
     
-    Collection<GranuleDescriptor> granules;
+    File mosaicDir;
+    
+    CachedGranuleCatalog granules;
     
     public GranulesManager(File mosaicDir){
         if(mosaicDir == null || !mosaicDir.exists() || !mosaicDir.isDirectory() || !mosaicDir.canRead()){
             LOGGER.severe("the passed parameter 'mosaicDir' is null or check if the file passed exist and it is a directory and if it can be read.");
         }
         else{
+            this.mosaicDir = mosaicDir;
             this.granules = loadGranulesDescriptor(mosaicDir);
         } 
     }
     
-    private Collection<GranuleDescriptor> loadGranulesDescriptor(File mosaicDir) throws IllegalStateException{
+    private CachedGranuleCatalog loadGranulesDescriptor(File mosaicDir) throws IllegalStateException{
+        try {
+            return GranuleCatalogCache.getInstance().getEntry(mosaicDir);
+        } catch (IOException e) {
+            LOGGER.severe(e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Search the granule index of the mosaic: the datastore.properties file if present, otherwise the first shapefile found in the mosaic dir.
+     */
+    static File findIndexFile(File mosaicDir) throws IllegalStateException{
         File datastore = new File(mosaicDir, "datastore.properties");
         File shapeFile = null;
         File indexFound = null;
@@ -85,29 +102,102 @@ public class GranulesManager {
             }
             indexFound = shapeFile;
         }
-        Collection<GranuleDescriptor> granules = null;
+        return indexFound;
+    }
+    
+    /**
+     * The mosaic configuration is stored in a .properties file named as the mosaic dir.
+     */
+    static File getMosaicPropertiesFile(File mosaicDir){
+        return new File(mosaicDir, mosaicDir.getName() + ".properties");
+    }
+    
+    /**
+     * Open the granule index, no granule is loaded here. This is the expensive operation cached by {@link GranuleCatalogCache}.
+     */
+    static CachedGranuleCatalog openCatalog(File mosaicDir, File indexFound, List<FileStamp> stamps) throws IOException{
+        GranuleCatalog catalog = null;
         try {
             String [] splittedURL = mosaicDir.toURI().toURL().toString().split("/");
             MosaicConfigurationBean mcb = loadMosaicProperties(new URL(mosaicDir.toURI().toURL()+splittedURL[splittedURL.length-1]), "");
-            granules = GranuleCatalogFactory.createGranuleCatalog(indexFound.toURI().toURL(), mcb).getGranules();
+            catalog = GranuleCatalogFactory.createGranuleCatalog(indexFound.toURI().toURL(), mcb);
+            return new CachedGranuleCatalog(stamps, catalog, mcb);
         } catch (Exception e) {
+            if (catalog != null) {
+                catalog.dispose();
+            }
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Unable to open the granule index '" + indexFound + "': " + e.getMessage());
+        }
+    }
+    
+    /**
+     * The resolutions of the mosaic levels, from the highest, as declared by Levels in the mosaic configuration.
+     * 
+     * @return null if the configuration is missing or invalid
+     */
+    static double[][] getResolutionLevels(File mosaicDir){
+        try {
+            String [] splittedURL = mosaicDir.toURI().toURL().toString().split("/");
+            MosaicConfigurationBean mcb = loadMosaicProperties(new URL(mosaicDir.toURI().toURL()+splittedURL[splittedURL.length-1]), "");
+            return mcb != null ? mcb.getLevels() : null;
+        } catch (MalformedURLException e) {
             LOGGER.severe(e.getMessage());
             return null;
         }
-        return granules;
     }
     
+    /**
+     * Lookup the bounding boxes of the provided granules, only the requested granules are loaded
+     * from the index so the cost depends on the number of requested names, not on the size of the mosaic.
+     * 
+     * @return the bounding boxes keyed by granule path, see {@link #getGranulePath(URL)}
+     */
     public Map<String, BoundingBox> searchBoundingBoxes(List<String> granulesFileNames){
         Map<String, BoundingBox> bboxMap = new HashMap<String, BoundingBox>();
-        for(GranuleDescriptor el : this.granules){
-            String [] urlSplitted = el.getGranuleUrl().toString().split("/");
-            if(granulesFileNames.contains(urlSplitted[urlSplitted.length-1])){
-                bboxMap.put(el.getGranuleUrl().getFile(), el.getGranuleBBOX());
+        Map<String, List<GranuleDescriptor>> found = null;
+        try {
+            if(this.granules == null){
+                LOGGER.severe("The granule catalog of the mosaic '" + mosaicDir + "' is not available, no granules found");
+                return bboxMap;
+            }
+            found = this.granules.getGranules(granulesFileNames);
+            if(found == null){
+                // the catalog has been evicted and closed meanwhile, open it again
+                this.granules = loadGranulesDescriptor(mosaicDir);
+                if(this.granules == null){
+                    LOGGER.severe("Unable to reload the granule catalog of the mosaic '" + mosaicDir + "', no granules found");
+                    return bboxMap;
+                }
+                found = this.granules.getGranules(granulesFileNames);
+                if(found == null){
+                    LOGGER.severe("The granule catalog of the mosaic '" + mosaicDir + "' has been closed again, no granules found");
+                    return bboxMap;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.severe(e.getMessage());
+            return bboxMap;
+        }
+        for(List<GranuleDescriptor> sameName : found.values()){
+            for(GranuleDescriptor el : sameName){
+                bboxMap.put(getGranulePath(el.getGranuleUrl()), el.getGranuleBBOX());
             }
         }
         return bboxMap;
     }
     
+    /**
+     * @return the absolute path of the granule file, decoded and in the platform syntax as
+     *         {@link File#getAbsolutePath()} returns it; the URL path if it is not a file
+     */
+    public static String getGranulePath(URL url){
+        File file = DataUtilities.urlToFile(url);
+        return file != null ? file.getAbsolutePath() : url.getFile();
+    }
+    
     // **************************************************************************************
     // TODO The following 2 methods are copied by org.geotools.gce.imagemosaic.Utils class, 
     //  declare them public or investigate if other public similar method are avaiable somewhere.
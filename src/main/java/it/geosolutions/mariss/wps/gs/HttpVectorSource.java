@@ -0,0 +1,626 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import it.geosolutions.mariss.wps.monitor.DownloadMetrics;
+import it.geosolutions.mariss.wps.ppio.StreamSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.io.FileUtils;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A vector output fetched from the WFS or WMS. The status and the content type of a response are
+ * checked before anything is written: the OWS exception reports and the error pages are rejected,
+ * the ZIP outputs (shape-zip and KMZ) must start with a ZIP header. They must also end with a
+ * complete central directory.
+ * <p>
+ * The transient failures are retried with a growing delay. Staged with {@link #fetch()}, the
+ * output is written to its file: a retry goes on from the bytes already in the file with a Range
+ * request when the server supports it, otherwise the file is fetched again from the start, and
+ * the file is checked before it is archived.
+ * <p>
+ * Streamed with {@link #writeTo(OutputStream)}, the response goes straight into the archive
+ * entry. A failure before the first byte is retried from the start. A failure in the middle
+ * cannot take back the bytes in the entry: the rest is fetched with a Range request, validated
+ * by the ETag or Last-Modified of the first response, in the file, which is checked before it is
+ * appended to the entry. A server not supporting that fails the entry.
+ */
+abstract class HttpVectorSource implements StreamSource {
+
+    static final Logger LOGGER = Logging.getLogger(HttpVectorSource.class);
+
+    private static final Random JITTER = new Random();
+
+    /** local file header, or end of central directory of an empty ZIP */
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    /** the end of central directory record with the longest comment */
+    private static final int TAIL_SIZE = 22 + 0xFFFF;
+
+    private static final int SNIPPET_SIZE = 1024;
+
+    private final File file;
+
+    private final String name;
+
+    private final String stage;
+
+    private final VectorHttpClient client;
+
+    /** the first response supports the Range requests */
+    private boolean acceptRanges;
+
+    /** the ETag or Last-Modified of the first response, to resume the same content */
+    private String validator;
+
+    /** the first response is a ZIP, its structure is checked */
+    private boolean zipExpected;
+
+    /** the file is not a complete ZIP, the next attempt starts over */
+    private boolean restart;
+
+    /**
+     * @param file where the response is staged, or the rest of a streamed response after a
+     *        failure; its name is the archive entry
+     * @param kind the kind of output, the fetches are timed by kind
+     */
+    HttpVectorSource(File file, String kind, VectorHttpClient client) {
+        this.file = file;
+        this.name = file.getName();
+        this.stage = DownloadMetrics.VECTOR_FETCH + kind;
+        this.client = client;
+    }
+
+    /**
+     * @return a new request, a method cannot be executed twice
+     */
+    abstract HttpMethod createMethod() throws IOException;
+
+    public String getName() {
+        return name;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    public long getSizeHint() {
+        return -1;
+    }
+
+    /**
+     * Stream the output in the archive entry, the file holds the rest of the response after a
+     * failure only and is removed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        TailOutputStream entry = new TailOutputStream(out);
+        DownloadMetrics.Timer timer = DownloadMetrics.getInstance().start(stage);
+        try {
+            fetchWithRetries(entry);
+            timer.stop(entry.getCount());
+        } finally {
+            timer.close();
+            if (file.exists() && !file.delete()) {
+                LOGGER.warning("File '" + file.getName() + "' cannot be deleted...");
+            }
+        }
+    }
+
+    /**
+     * Fetch the output in its file, retrying the transient failures.
+     *
+     * @return the file, complete and checked
+     */
+    File fetch() throws IOException {
+        DownloadMetrics.Timer timer = DownloadMetrics.getInstance().start(stage);
+        try {
+            truncate();
+            fetchWithRetries(null);
+            timer.stop(file.length());
+            return file;
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * @param entry the archive entry when streaming, null to stage the output in its file
+     */
+    private void fetchWithRetries(TailOutputStream entry) throws IOException {
+        long start = System.currentTimeMillis();
+        int retries = client.getRetries();
+        long delay = client.getRetryDelay();
+        for (int attempt = 1;; attempt++) {
+            long attemptStart = System.currentTimeMillis();
+            long offset = getReceived(entry);
+            try {
+                if (entry == null) {
+                    fetchOnce();
+                } else if (entry.getCount() == 0) {
+                    streamOnce(entry);
+                } else {
+                    resumeOnce(entry);
+                }
+                LOGGER.info("The " + name + " has been fetched in " + (System.currentTimeMillis() - start) + " ms, "
+                        + getReceived(entry) + " bytes, " + attempt + " attempts");
+                return;
+            } catch (IOException e) {
+                // the archive entry cannot take another attempt once its stream failed
+                boolean retryable = (entry == null || !entry.isBroken())
+                        && (!(e instanceof VectorFetchException) || ((VectorFetchException) e).isRetryable());
+                LOGGER.warning("Attempt " + attempt + " of the " + name + " failed after "
+                        + (System.currentTimeMillis() - attemptStart) + " ms, " + (getReceived(entry) - offset)
+                        + " bytes: " + e.getMessage());
+                if (!retryable || attempt > retries) {
+                    throw e;
+                }
+            }
+            client.recordRetry();
+            sleep(delay + JITTER.nextInt(1 + (int) Math.min(delay / 2, Integer.MAX_VALUE - 1)));
+            delay = Math.min(delay * 2, client.getMaxRetryDelay());
+        }
+    }
+
+    private long getReceived(TailOutputStream entry) {
+        return (entry != null ? entry.getCount() : 0) + file.length();
+    }
+
+    /**
+     * Fetch the output, or the rest of it, in the file.
+     */
+    private void fetchOnce() throws IOException {
+        if (restart) {
+            truncate();
+            restart = false;
+        }
+        Response response = open(file.length(), true);
+        try {
+            // a full response replaces what the file holds
+            receive(response, file, response.partial);
+        } finally {
+            response.method.releaseConnection();
+        }
+        if (zipExpected) {
+            checkComplete(readTail(file), file.length(), true);
+        }
+    }
+
+    /**
+     * Stream the whole output in the entry, once the response has been checked.
+     */
+    private void streamOnce(TailOutputStream entry) throws IOException {
+        Response response = open(0, true);
+        try {
+            checkLength(response, copy(response.in, entry));
+        } finally {
+            response.method.releaseConnection();
+        }
+        if (zipExpected) {
+            // the entry has been written, it cannot be fetched again
+            checkComplete(entry.getTail(), entry.getCount(), false);
+        }
+    }
+
+    /**
+     * Fetch the rest of the output, after the bytes already in the entry, in the file. It is
+     * appended to the entry once complete.
+     */
+    private void resumeOnce(TailOutputStream entry) throws IOException {
+        if (restart || !file.exists()) {
+            truncate();
+            restart = false;
+        }
+        Response response = open(entry.getCount() + file.length(), false);
+        try {
+            receive(response, file, true);
+        } finally {
+            response.method.releaseConnection();
+        }
+        if (zipExpected) {
+            byte[] tail = readTail(file);
+            if (tail.length < TAIL_SIZE) {
+                // the end of central directory may start in the entry
+                byte[] head = entry.getTail();
+                int headLength = Math.min(head.length, TAIL_SIZE - tail.length);
+                byte[] joined = new byte[headLength + tail.length];
+                System.arraycopy(head, head.length - headLength, joined, 0, headLength);
+                System.arraycopy(tail, 0, joined, headLength, tail.length);
+                tail = joined;
+            }
+            checkComplete(tail, entry.getCount() + file.length(), true);
+        }
+        FileUtils.copyFile(file, entry);
+        if (!file.delete()) {
+            LOGGER.warning("File '" + file.getName() + "' cannot be deleted...");
+        }
+    }
+
+    /**
+     * Send the request and check the response, before anything is written.
+     *
+     * @param offset the bytes already received, the rest is asked with a Range request
+     * @param restartAllowed the whole output can be received again
+     */
+    private Response open(long offset, boolean restartAllowed) throws IOException {
+        HttpMethod method = createMethod();
+        boolean ranged = offset > 0 && acceptRanges && "GET".equals(method.getName())
+                && (restartAllowed || validator != null);
+        if (offset > 0 && !ranged && !restartAllowed) {
+            throw new VectorFetchException("The " + name + " cannot be resumed at byte " + offset
+                    + ", the service does not support the Range requests", false);
+        }
+        if (ranged) {
+            method.setRequestHeader("Range", "bytes=" + offset + "-");
+            if (validator != null) {
+                method.setRequestHeader("If-Range", validator);
+            }
+        }
+        boolean success = false;
+        try {
+            int status = client.execute(method);
+            Response response = new Response(method, method.getResponseBodyAsStream());
+            if (status == HttpStatus.SC_PARTIAL_CONTENT && ranged) {
+                Header range = method.getResponseHeader("Content-Range");
+                if (range == null || !range.getValue().trim().startsWith("bytes " + offset + "-")) {
+                    client.recordInvalidResponse();
+                    throw new VectorFetchException("Unexpected range " + (range != null ? range.getValue() : null)
+                            + " when resuming the " + name + " at byte " + offset, false);
+                }
+                client.recordResume(offset);
+                response.partial = true;
+            } else if (status == HttpStatus.SC_OK) {
+                if (offset > 0 && !restartAllowed) {
+                    client.recordInvalidResponse();
+                    throw new VectorFetchException("The " + name + " has changed, it cannot be resumed at byte "
+                            + offset, false);
+                }
+                // the whole content, a new one if it changed since the first attempt
+                response.in = checkResponse(method, response.in);
+            } else {
+                client.recordInvalidResponse();
+                throw new VectorFetchException("HTTP status " + status + " for the " + name
+                        + readSnippet(response.in), isTransient(status));
+            }
+            success = true;
+            return response;
+        } finally {
+            if (!success) {
+                method.releaseConnection();
+            }
+        }
+    }
+
+    private void receive(Response response, File target, boolean append) throws IOException {
+        long received;
+        OutputStream out = new FileOutputStream(target, append);
+        try {
+            received = copy(response.in, out);
+        } finally {
+            out.close();
+        }
+        checkLength(response, received);
+    }
+
+    private static void checkLength(Response response, long received) throws IOException {
+        long expected = getContentLength(response.method);
+        if (expected >= 0 && received < expected) {
+            throw new IOException("Truncated response, " + received + " of " + expected + " bytes");
+        }
+    }
+
+    /**
+     * Reject the exception reports and the responses that are not the expected ZIP, before
+     * anything is written.
+     */
+    private InputStream checkResponse(HttpMethod method, InputStream in) throws IOException {
+        Header type = method.getResponseHeader("Content-Type");
+        String contentType = type != null ? type.getValue().toLowerCase() : "";
+        int parameters = contentType.indexOf(';');
+        String mimeType = (parameters >= 0 ? contentType.substring(0, parameters) : contentType).trim();
+        if (mimeType.startsWith("application/vnd.ogc.se") || mimeType.equals("text/xml")
+                || mimeType.equals("application/xml") || mimeType.equals("text/html")
+                || mimeType.equals("text/plain")) {
+            client.recordInvalidResponse();
+            throw new VectorFetchException("The service answered " + mimeType + " instead of the " + name
+                    + readSnippet(in), false);
+        }
+        Header ranges = method.getResponseHeader("Accept-Ranges");
+        acceptRanges = ranges != null && "bytes".equalsIgnoreCase(ranges.getValue().trim());
+        Header etag = method.getResponseHeader("ETag");
+        Header lastModified = method.getResponseHeader("Last-Modified");
+        validator = etag != null ? etag.getValue() : lastModified != null ? lastModified.getValue() : null;
+
+        zipExpected = mimeType.contains("zip") || mimeType.contains("kmz") || name.endsWith(".zip");
+        if (!zipExpected) {
+            return in;
+        }
+        PushbackInputStream pushback = new PushbackInputStream(in != null ? in : new ByteArrayInputStream(new byte[0]), 4);
+        byte[] signature = new byte[4];
+        int length = 0;
+        int read;
+        while (length < 4 && (read = pushback.read(signature, length, 4 - length)) >= 0) {
+            length += read;
+        }
+        int value = length == 4 ? readInt(signature, 0) : 0;
+        if (value != LOCAL_HEADER_SIGNATURE && value != END_SIGNATURE) {
+            client.recordInvalidResponse();
+            throw new VectorFetchException("The " + name + " is not a ZIP archive" + readSnippet(pushback), false);
+        }
+        pushback.unread(signature, 0, length);
+        return pushback;
+    }
+
+    /**
+     * The last bytes must be an end of central directory record, with the central directory
+     * right before it.
+     *
+     * @param last the last bytes of the output
+     * @param count the size of the output
+     * @param restartable the bytes are in the file, the next attempt fetches them again
+     */
+    private void checkComplete(byte[] last, long count, boolean restartable) throws IOException {
+        int length = last.length;
+        for (int pos = length - 22; pos >= 0; pos--) {
+            if (readInt(last, pos) != END_SIGNATURE) {
+                continue;
+            }
+            int commentLength = readShort(last, pos + 20);
+            long directorySize = readInt(last, pos + 12) & 0xFFFFFFFFL;
+            long directoryOffset = readInt(last, pos + 16) & 0xFFFFFFFFL;
+            long end = count - length + pos;
+            if (pos + 22 + commentLength == length
+                    && (directoryOffset + directorySize == end || directoryOffset == 0xFFFFFFFFL)) {
+                return;
+            }
+        }
+        client.recordInvalidResponse();
+        restart = restartable;
+        throw new VectorFetchException("The " + name + " is not a complete ZIP archive, " + count + " bytes",
+                restartable);
+    }
+
+    private static byte[] readTail(File f) throws IOException {
+        long count = f.length();
+        byte[] last = new byte[(int) Math.min(count, TAIL_SIZE)];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.seek(count - last.length);
+            raf.readFully(last);
+        } finally {
+            raf.close();
+        }
+        return last;
+    }
+
+    private void truncate() throws IOException {
+        new FileOutputStream(file).close();
+    }
+
+    private long copy(InputStream in, OutputStream out) throws IOException {
+        if (in == null) {
+            return 0;
+        }
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        try {
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+                total += read;
+            }
+        } finally {
+            client.recordBytes(total);
+            in.close();
+        }
+        return total;
+    }
+
+    /**
+     * The beginning of an error response, for the log.
+     */
+    private static String readSnippet(InputStream in) {
+        if (in == null) {
+            return "";
+        }
+        try {
+            byte[] buffer = new byte[SNIPPET_SIZE];
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) >= 0) {
+                length += read;
+            }
+            return length > 0 ? ": " + new String(buffer, 0, length, "UTF-8").trim() : "";
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static int readShort(byte[] b, int pos) {
+        return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return readShort(b, pos) | readShort(b, pos + 2) << 16;
+    }
+
+    private static long getContentLength(HttpMethod method) {
+        Header length = method.getResponseHeader("Content-Length");
+        if (length != null) {
+            try {
+                return Long.parseLong(length.getValue().trim());
+            } catch (NumberFormatException e) {
+                LOGGER.fine(e.getMessage());
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isTransient(int status) {
+        return status >= 500 || status == HttpStatus.SC_REQUEST_TIMEOUT || status == 429;
+    }
+
+    private static void sleep(long delay) throws IOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * A failure of a fetch, telling whether another attempt can succeed.
+     */
+    static class VectorFetchException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean retryable;
+
+        VectorFetchException(String message, boolean retryable) {
+            super(message);
+            this.retryable = retryable;
+        }
+
+        boolean isRetryable() {
+            return retryable;
+        }
+    }
+
+    /**
+     * A response checked by {@link HttpVectorSource#open(long, boolean)}.
+     */
+    private static class Response {
+
+        final HttpMethod method;
+
+        InputStream in;
+
+        /** the rest of the output, after the offset asked */
+        boolean partial;
+
+        Response(HttpMethod method, InputStream in) {
+            this.method = method;
+            this.in = in;
+        }
+    }
+
+    /**
+     * The archive entry, counting what it received and keeping the last bytes for the end of
+     * central directory check.
+     */
+    private static class TailOutputStream extends OutputStream {
+
+        private final OutputStream delegate;
+
+        private final byte[] ring = new byte[TAIL_SIZE];
+
+        private long count;
+
+        private boolean broken;
+
+        TailOutputStream(OutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the archive stream failed, nothing else can be written
+         */
+        boolean isBroken() {
+            return broken;
+        }
+
+        /**
+         * @return the last bytes received, up to the size of the longest end of central directory
+         */
+        byte[] getTail() {
+            int length = (int) Math.min(count, ring.length);
+            byte[] tail = new byte[length];
+            int start = (int) ((count - length) % ring.length);
+            int first = Math.min(length, ring.length - start);
+            System.arraycopy(ring, start, tail, 0, first);
+            System.arraycopy(ring, 0, tail, first, length - first);
+            return tail;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                delegate.write(b, off, len);
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+            long position = count;
+            count += len;
+            if (len > ring.length) {
+                position += len - ring.length;
+                off += len - ring.length;
+                len = ring.length;
+            }
+            int start = (int) (position % ring.length);
+            int first = Math.min(len, ring.length - start);
+            System.arraycopy(b, off, ring, start, first);
+            System.arraycopy(b, off + first, ring, 0, len - first);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                delegate.flush();
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() {
+            // the entry is closed by the archive writer
+        }
+    }
+}
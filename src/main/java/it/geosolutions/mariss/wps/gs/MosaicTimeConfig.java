@@ -0,0 +1,131 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.FastDateFormat;
+import org.geotools.gce.imagemosaic.properties.time.TimeParser;
+import org.geotools.process.ProcessException;
+import org.geotools.util.logging.Logging;
+
+/**
+ * The time configuration of a mosaic: the compiled regex of its timeregex.properties, which
+ * extracts the time from the granule file names. The configurations are cached per mosaic and
+ * reloaded when the file changes.
+ * <p>
+ * Also holds the time parser and formatters shared by all the downloads. They are all thread safe.
+ */
+class MosaicTimeConfig {
+
+    static final Logger LOGGER = Logging.getLogger(MosaicTimeConfig.class);
+
+    /** the times of the CQL and OGC filters, in the server time zone as always done */
+    static final FastDateFormat FILTER_FORMAT = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss");
+
+    /** the times of the result cache keys and of the extracted vector attributes */
+    static final FastDateFormat UTC_FORMAT = FastDateFormat.getInstance(
+            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", TimeZone.getTimeZone("UTC"));
+
+    /** keeps no state between the calls, it can be shared */
+    static final TimeParser TIME_PARSER = new TimeParser();
+
+    private static final ConcurrentMap<File, MosaicTimeConfig> CONFIGS = new ConcurrentHashMap<File, MosaicTimeConfig>();
+
+    private final FileStamp stamp;
+
+    private final Pattern pattern;
+
+    private MosaicTimeConfig(FileStamp stamp, Pattern pattern) {
+        this.stamp = stamp;
+        this.pattern = pattern;
+    }
+
+    /**
+     * @return the time configuration of the mosaic, loaded again if its file has changed
+     */
+    static MosaicTimeConfig get(File mosaicDir) throws ProcessException {
+        File key = mosaicDir.getAbsoluteFile();
+        MosaicTimeConfig config = CONFIGS.get(key);
+        if (config == null || config.stamp.isChanged()) {
+            // two threads may load it at the same time, they get equivalent configurations
+            config = load(key);
+            CONFIGS.put(key, config);
+        }
+        return config;
+    }
+
+    Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return a matcher to be reused, with {@link Matcher#reset(CharSequence)}, by a single thread
+     */
+    Matcher newMatcher() {
+        return pattern.matcher("");
+    }
+
+    private static MosaicTimeConfig load(File mosaicDir) throws ProcessException {
+
+        FileInputStream in = null;
+        try {
+            File f = new File(mosaicDir, "timeregex.properties");
+            if (!f.exists() || !f.isFile() || !f.canRead()) {
+                throw new ProcessException(
+                        "The timeregex.properties file don't exist or is not accessible...");
+            }
+            // taken before reading, a change during the read triggers another load
+            FileStamp stamp = new FileStamp(f);
+            in = new FileInputStream(f);
+            Properties prop = new Properties();
+            prop.load(in);
+            String regex = prop.getProperty("regex");
+            if (StringUtils.isBlank(regex)) {
+                throw new ProcessException("The timeregex.properties not contains a valid regex...");
+            }
+            Pattern p = Pattern.compile(regex);
+            LOGGER.info("Timeregex '" + regex + "' loaded");
+            return new MosaicTimeConfig(stamp, p);
+        } catch (IOException e) {
+            LOGGER.severe(e.getMessage());
+            throw new ProcessException("Error while trying to access to timeregex.properties file");
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    LOGGER.severe(e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageWriteParam;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridFormatFinder;
+import org.geotools.coverage.grid.io.OverviewPolicy;
+import org.geotools.coverage.grid.io.UnknownFormat;
+import org.geotools.coverage.processing.Operations;
+import org.geotools.factory.Hints;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.GeneralEnvelope;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.opengis.geometry.BoundingBox;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+import org.opengis.parameter.ParameterValueGroup;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.datum.PixelInCell;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Write the part of a granule covering the area of interest, at the requested resolution, as a
+ * tiled, compressed GeoTIFF. The granule is read through its coverage reader with deferred
+ * loading, so only the tiles intersecting the AOI are read from disk. A coarser resolution is
+ * read from the matching overview of the granule, decimated when it falls between two
+ * overviews. The output is the bounding box of the AOI, the pixels outside the geometry are
+ * kept.
+ */
+class RasterSubsetter {
+
+    static final Logger LOGGER = Logging.getLogger(RasterSubsetter.class);
+
+    private static final int TILE_SIZE = 512;
+
+    private final ReferencedEnvelope aoi;
+
+    private final double[] resolution;
+
+    /**
+     * @param aoi the area of interest, null for the whole granules
+     * @param crs the reference system of the AOI
+     * @param resolution the pixel size in the units of the granules, x and y, null for the
+     *        native resolution
+     */
+    RasterSubsetter(Geometry aoi, CoordinateReferenceSystem crs, double[] resolution) {
+        this.aoi = aoi != null ? new ReferencedEnvelope(aoi.getEnvelopeInternal(), crs) : null;
+        this.resolution = resolution;
+    }
+
+    /**
+     * @return what the subsets depend on, for the result cache
+     */
+    String getCacheKey() {
+        StringBuilder sb = new StringBuilder();
+        if (aoi != null) {
+            sb.append(CRS.toSRS(aoi.getCoordinateReferenceSystem())).append(' ')
+                    .append(aoi.getMinX()).append(',').append(aoi.getMinY()).append(',')
+                    .append(aoi.getMaxX()).append(',').append(aoi.getMaxY());
+        }
+        if (resolution != null) {
+            sb.append(" res ").append(resolution[0]).append(',').append(resolution[1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The expected size of the subset of a granule, charged to the download by the admission
+     * control before the subset is written: the size of the granule scaled by the share of its
+     * extent covered by the AOI and by the resolution.
+     *
+     * @param bbox the extent of the granule from the mosaic index, null if unknown
+     * @param nativeResolution the resolution of the mosaic, null if unknown
+     * @return the size of the granule when the share cannot be computed
+     */
+    long estimateSize(File granule, BoundingBox bbox, double[] nativeResolution) {
+        double share = 1;
+        if (aoi != null && bbox != null) {
+            try {
+                ReferencedEnvelope extent = new ReferencedEnvelope(bbox);
+                Envelope covered = extent.intersection(aoi.transform(
+                        bbox.getCoordinateReferenceSystem(), true));
+                if (extent.getArea() > 0) {
+                    share = covered.isNull() ? 0 : covered.getArea() / extent.getArea();
+                }
+            } catch (Exception e) {
+                LOGGER.fine("Unable to compare the AOI with the extent of '" + granule.getName()
+                        + "': " + e.getMessage());
+            }
+        }
+        if (resolution != null && nativeResolution != null) {
+            share *= Math.min(1, nativeResolution[0] / resolution[0])
+                    * Math.min(1, nativeResolution[1] / resolution[1]);
+        }
+        return (long) Math.ceil(granule.length() * share);
+    }
+
+    /**
+     * @param granule the raster file
+     * @param target the GeoTIFF to write
+     * @return false if the granule is outside the AOI, nothing is written
+     */
+    boolean subset(File granule, File target) throws IOException {
+        AbstractGridFormat format = GridFormatFinder.findFormat(granule);
+        if (format == null || format instanceof UnknownFormat) {
+            throw new IOException("No coverage reader found for '" + granule.getName() + "'");
+        }
+        AbstractGridCoverage2DReader reader = format.getReader(granule, new Hints(
+                Hints.FORCE_LONGITUDE_FIRST_AXIS_ORDER, Boolean.TRUE));
+        if (reader == null) {
+            throw new IOException("Unable to read '" + granule.getName() + "'");
+        }
+        GridCoverage2D coverage = null;
+        try {
+            CoordinateReferenceSystem crs = reader.getCrs();
+            GeneralEnvelope envelope = new GeneralEnvelope(reader.getOriginalEnvelope());
+            if (aoi != null) {
+                try {
+                    envelope = new GeneralEnvelope(aoi.transform(crs, true));
+                } catch (Exception e) {
+                    throw (IOException) new IOException("Unable to reproject the AOI to the reference system of '"
+                            + granule.getName() + "'").initCause(e);
+                }
+                envelope.setCoordinateReferenceSystem(crs);
+                envelope.intersect(reader.getOriginalEnvelope());
+                if (envelope.isEmpty()) {
+                    LOGGER.fine("The granule '" + granule.getName() + "' is outside the AOI");
+                    return false;
+                }
+            }
+
+            coverage = reader.read(readParameters(reader, envelope));
+            if (coverage == null) {
+                return false;
+            }
+            // the read is tile aligned, cut it to the AOI
+            GridCoverage2D cropped = aoi != null ? (GridCoverage2D) Operations.DEFAULT.crop(coverage,
+                    envelope) : coverage;
+            write(cropped, target);
+            LOGGER.fine("Granule '" + granule.getName() + "' cut to " + envelope + ", "
+                    + target.length() + " bytes");
+            return true;
+        } finally {
+            if (coverage != null) {
+                coverage.dispose(true);
+            }
+            reader.dispose();
+        }
+    }
+
+    private GeneralParameterValue[] readParameters(AbstractGridCoverage2DReader reader, GeneralEnvelope envelope)
+            throws IOException {
+        ParameterValue<GridGeometry2D> gridGeometry = AbstractGridFormat.READ_GRIDGEOMETRY2D.createValue();
+        double[] nativeResolution = reader.getResolutionLevels()[0];
+        if (resolution != null && (resolution[0] > nativeResolution[0] || resolution[1] > nativeResolution[1])) {
+            // never finer than the granule
+            int width = (int) Math.max(1, Math.round(envelope.getSpan(0)
+                    / Math.max(resolution[0], nativeResolution[0])));
+            int height = (int) Math.max(1, Math.round(envelope.getSpan(1)
+                    / Math.max(resolution[1], nativeResolution[1])));
+            gridGeometry.setValue(new GridGeometry2D(new GridEnvelope2D(0, 0, width, height), envelope));
+        } else {
+            MathTransform gridToWorld = reader.getOriginalGridToWorld(PixelInCell.CELL_CORNER);
+            gridGeometry.setValue(new GridGeometry2D(PixelInCell.CELL_CORNER, gridToWorld, envelope, null));
+        }
+        // the overview at or just finer than the requested resolution, then subsampled
+        ParameterValue<OverviewPolicy> overviewPolicy = AbstractGridFormat.OVERVIEW_POLICY.createValue();
+        overviewPolicy.setValue(OverviewPolicy.QUALITY);
+        // deferred loading, only the tiles needed by the crop are read
+        ParameterValue<Boolean> jaiImageRead = AbstractGridFormat.USE_JAI_IMAGEREAD.createValue();
+        jaiImageRead.setValue(true);
+        return new GeneralParameterValue[] { gridGeometry, overviewPolicy, jaiImageRead };
+    }
+
+    private static void write(GridCoverage2D coverage, File target) throws IOException {
+        GeoTiffWriteParams wp = new GeoTiffWriteParams();
+        wp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        wp.setCompressionType("Deflate");
+        wp.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+        wp.setTiling(TILE_SIZE, TILE_SIZE);
+        ParameterValueGroup params = new GeoTiffFormat().getWriteParameters();
+        params.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString()).setValue(wp);
+
+        GeoTiffWriter writer = new GeoTiffWriter(target);
+        try {
+            writer.write(coverage, params.values().toArray(new GeneralParameterValue[1]));
+        } finally {
+            writer.dispose();
+        }
+    }
+}
@@ -0,0 +1,580 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import java.awt.Color;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.ShapefileDataStoreFactory;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.process.ProcessException;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.styling.LineSymbolizer;
+import org.geotools.styling.PointSymbolizer;
+import org.geotools.styling.PolygonSymbolizer;
+import org.geotools.styling.SLD;
+import org.geotools.styling.Style;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Extract the ship detection features straight from the catalog, without going through the
+ * GeoServer WFS and WMS services over HTTP. Produces the same artifacts the process used to
+ * download: a zipped shapefile, split by geometry type as the WFS does, and a KMZ styled with
+ * the point style of the WMS.
+ */
+public class VectorDataExtractor {
+
+    static final Logger LOGGER = Logging.getLogger(VectorDataExtractor.class);
+
+    private static final String[] SHAPEFILE_EXTENSIONS = { "shp", "shx", "dbf", "prj", "cpg" };
+
+    /** DBF field names cannot be longer than this */
+    private static final int MAX_DBF_NAME_LENGTH = 10;
+
+    /** the style the WMS applies to the KML of the ship detections */
+    static final String KML_STYLE = "point";
+
+    /** a white circle, tinted with the fill of the mark */
+    private static final String KML_ICON = "http://maps.google.com/mapfiles/kml/shapes/placemark_circle.png";
+
+    /** the size in pixels of the icon at scale 1 */
+    private static final int KML_ICON_SIZE = 32;
+
+    /** the length of the times written as text, yyyy-MM-ddTHH:mm:ss.SSSZ */
+    private static final int TIME_LENGTH = 24;
+
+    /** the names of the shapefiles of a layer split by geometry type */
+    private static final Map<Class<?>, String> SHAPEFILE_SUFFIXES = new HashMap<Class<?>, String>();
+    static {
+        SHAPEFILE_SUFFIXES.put(Point.class, "Point");
+        SHAPEFILE_SUFFIXES.put(MultiPoint.class, "MultiPoint");
+        SHAPEFILE_SUFFIXES.put(MultiLineString.class, "Line");
+        SHAPEFILE_SUFFIXES.put(MultiPolygon.class, "Polygon");
+    }
+
+    private final Catalog catalog;
+
+    public VectorDataExtractor(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Write the features of the layer matching the filter as a zipped shapefile.
+     */
+    public void writeShapeZip(String workspace, String layer, Filter filter, File outDest)
+            throws IOException {
+        OutputStream out = new FileOutputStream(outDest);
+        try {
+            writeShapeZip(workspace, layer, filter, outDest.getParentFile(), out);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * The shapefile is written in a temporary directory, the shapefile writer needs files, then
+     * zipped in the stream.
+     *
+     * @param tempDir where the temporary directory of the shapefile is created
+     */
+    public void writeShapeZip(String workspace, String layer, Filter filter, File tempDir,
+            OutputStream out) throws IOException {
+        SimpleFeatureSource source = getFeatureSource(workspace, layer);
+        SimpleFeatureCollection features = source.getFeatures(new Query(source.getSchema()
+                .getTypeName(), filter));
+
+        File tmpDir = new File(tempDir, layer + UUID.randomUUID());
+        if (!tmpDir.mkdirs()) {
+            throw new IOException("Unable to create the temp dir '" + tmpDir + "'");
+        }
+        try {
+            int count = writeShapefiles(features, tmpDir, layer);
+            zipShapefiles(tmpDir, out);
+            LOGGER.info("Written " + count + " features of '" + layer + "' to the shapefile");
+        } finally {
+            FileUtils.deleteQuietly(tmpDir);
+        }
+    }
+
+    /**
+     * Write the features of the layer matching the filter as a KMZ with a placemark per feature.
+     */
+    public void writeKmz(String workspace, String layer, Filter filter, File outDest)
+            throws IOException {
+        OutputStream out = new FileOutputStream(outDest);
+        try {
+            writeKmz(workspace, layer, filter, out);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    public void writeKmz(String workspace, String layer, Filter filter, OutputStream out)
+            throws IOException {
+        SimpleFeatureSource source = getFeatureSource(workspace, layer);
+        // KML coordinates are always longitude/latitude
+        Query query = new Query(source.getSchema().getTypeName(), filter);
+        query.setCoordinateSystemReproject(DefaultGeographicCRS.WGS84);
+        SimpleFeatureCollection features = source.getFeatures(query);
+
+        StyleInfo style = catalog.getStyleByName(KML_STYLE);
+        if (style == null) {
+            LOGGER.warning("The style '" + KML_STYLE + "' is missing, the placemarks of '" + layer
+                    + "' are not styled");
+        }
+
+        ZipOutputStream zos = new ZipOutputStream(out);
+        zos.putNextEntry(new ZipEntry("doc.kml"));
+        Writer w = new BufferedWriter(new OutputStreamWriter(zos, "UTF-8"));
+        int count = writeKml(layer, features, style != null ? style.getStyle() : null, w);
+        w.flush();
+        zos.closeEntry();
+        zos.finish();
+        LOGGER.info("Written " + count + " features of '" + layer + "' to the KMZ");
+    }
+
+    private SimpleFeatureSource getFeatureSource(String workspace, String layer)
+            throws IOException {
+        FeatureTypeInfo info = catalog.getFeatureTypeByName(workspace, layer);
+        if (info == null) {
+            throw new ProcessException("Could not find layer '" + layer + "' in workspace '"
+                    + workspace + "'");
+        }
+        return DataUtilities.simple(info.getFeatureSource(null, null));
+    }
+
+    /**
+     * A shapefile holds a single geometry type. The features of a layer with a generic geometry
+     * are split by type, as the shape-zip output of the WFS does: a layer + Point, MultiPoint,
+     * Line or Polygon shapefile per type found, only the layer one when there is a single type.
+     *
+     * @return the number of features written
+     */
+    private static int writeShapefiles(SimpleFeatureCollection features, File dir, String layer)
+            throws IOException {
+        SimpleFeatureType sourceType = features.getSchema();
+        GeometryDescriptor geometry = sourceType.getGeometryDescriptor();
+        if (geometry == null) {
+            throw new IOException("The layer '" + sourceType.getTypeName()
+                    + "' has no geometry, it cannot be written as a shapefile");
+        }
+        Class<?> declared = geometry.getType().getBinding();
+        boolean generic = Geometry.class.equals(declared)
+                || GeometryCollection.class.equals(declared);
+        Set<Class<?>> bindings = new LinkedHashSet<Class<?>>();
+        if (generic) {
+            collectShapefileBindings(features, bindings);
+        } else {
+            bindings.add(declared);
+        }
+        if (bindings.isEmpty()) {
+            bindings.add(Point.class);
+        }
+
+        List<String> sourceNames = new ArrayList<String>();
+        Map<Class<?>, ShapefileOutput> outputs = new LinkedHashMap<Class<?>, ShapefileOutput>();
+        Class<?> first = bindings.iterator().next();
+        int count = 0;
+        int skipped = 0;
+        SimpleFeatureIterator it = null;
+        try {
+            for (Class<?> binding : bindings) {
+                String name = bindings.size() > 1 ? layer + SHAPEFILE_SUFFIXES.get(binding) : layer;
+                sourceNames.clear();
+                SimpleFeatureType shapeType = buildShapeType(sourceType, name, binding, sourceNames);
+                outputs.put(binding, new ShapefileOutput(new File(dir, name + ".shp"), shapeType));
+            }
+            it = features.features();
+            while (it.hasNext()) {
+                SimpleFeature source = it.next();
+                Object geom = source.getDefaultGeometry();
+                Class<?> binding;
+                if (geom == null) {
+                    binding = first;
+                } else if (generic) {
+                    binding = getShapefileBinding((Geometry) geom);
+                } else {
+                    binding = declared.isInstance(geom) ? declared : null;
+                }
+                ShapefileOutput output = binding != null ? outputs.get(binding) : null;
+                if (output == null) {
+                    skipped++;
+                    continue;
+                }
+                output.write(source, sourceNames);
+                count++;
+            }
+        } finally {
+            if (it != null) {
+                it.close();
+            }
+            for (ShapefileOutput output : outputs.values()) {
+                output.close();
+            }
+        }
+        if (skipped > 0) {
+            LOGGER.warning(skipped + " features of '" + sourceType.getTypeName()
+                    + "' skipped, their geometry cannot be written in a shapefile of "
+                    + (generic ? "a single type" : declared.getSimpleName()));
+        }
+        return count;
+    }
+
+    /**
+     * The geometry goes first, then the other attributes with DBF compatible names. The DBF
+     * dates have no time, the times are written as UTC text.
+     */
+    private static SimpleFeatureType buildShapeType(SimpleFeatureType sourceType, String name,
+            Class<?> geometryBinding, List<String> sourceNames) {
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName(name);
+        tb.setCRS(sourceType.getCoordinateReferenceSystem());
+        tb.add("the_geom", geometryBinding);
+        Set<String> usedNames = new HashSet<String>();
+        for (AttributeDescriptor ad : sourceType.getAttributeDescriptors()) {
+            if (ad instanceof GeometryDescriptor) {
+                continue;
+            }
+            Class<?> binding = ad.getType().getBinding();
+            if (java.sql.Date.class.isAssignableFrom(binding)) {
+                binding = Date.class;
+            } else if (Date.class.isAssignableFrom(binding)) {
+                binding = String.class;
+                tb.length(TIME_LENGTH);
+            }
+            tb.add(toDbfName(ad.getLocalName(), usedNames), binding);
+            sourceNames.add(ad.getLocalName());
+        }
+        return tb.buildFeatureType();
+    }
+
+    private static void collectShapefileBindings(SimpleFeatureCollection features,
+            Set<Class<?>> bindings) {
+        SimpleFeatureIterator it = features.features();
+        try {
+            while (it.hasNext()) {
+                Object geom = it.next().getDefaultGeometry();
+                if (geom != null) {
+                    Class<?> binding = getShapefileBinding((Geometry) geom);
+                    if (binding != null) {
+                        bindings.add(binding);
+                    }
+                }
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * @return the geometry type of the shapefile holding the geometry, null for the collections
+     *         of mixed types
+     */
+    private static Class<?> getShapefileBinding(Geometry geom) {
+        if (geom instanceof Point) {
+            return Point.class;
+        } else if (geom instanceof MultiPoint) {
+            return MultiPoint.class;
+        } else if (geom instanceof LineString || geom instanceof MultiLineString) {
+            return MultiLineString.class;
+        } else if (geom instanceof Polygon || geom instanceof MultiPolygon) {
+            return MultiPolygon.class;
+        }
+        return null;
+    }
+
+    private static String toDbfName(String name, Set<String> usedNames) {
+        String dbfName = name.length() > MAX_DBF_NAME_LENGTH ? name.substring(0,
+                MAX_DBF_NAME_LENGTH) : name;
+        int suffix = 0;
+        while (!usedNames.add(dbfName.toUpperCase())) {
+            String s = Integer.toString(suffix++);
+            dbfName = name.substring(0, Math.min(name.length(), MAX_DBF_NAME_LENGTH - s.length()))
+                    + s;
+        }
+        return dbfName;
+    }
+
+    private static void zipShapefiles(File dir, OutputStream out) throws IOException {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        ZipOutputStream zos = new ZipOutputStream(out);
+        for (String ext : SHAPEFILE_EXTENSIONS) {
+            for (File f : files) {
+                if (!f.getName().endsWith("." + ext)) {
+                    continue;
+                }
+                zos.putNextEntry(new ZipEntry(f.getName()));
+                FileInputStream in = new FileInputStream(f);
+                try {
+                    IOUtils.copy(in, zos);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+                zos.closeEntry();
+            }
+        }
+        zos.finish();
+    }
+
+    private static int writeKml(String layer, SimpleFeatureCollection features, Style style,
+            Writer w) throws IOException {
+        w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        w.write("<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document><name>");
+        w.write(StringEscapeUtils.escapeXml(layer));
+        w.write("</name>\n");
+        if (style != null) {
+            writeKmlStyle(style, w);
+        }
+        SimpleFeatureType type = features.getSchema();
+        int count = 0;
+        SimpleFeatureIterator it = features.features();
+        try {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                w.write("<Placemark id=\"");
+                w.write(StringEscapeUtils.escapeXml(f.getID()));
+                w.write("\"><name>");
+                w.write(StringEscapeUtils.escapeXml(f.getID()));
+                w.write("</name>");
+                if (style != null) {
+                    w.write("<styleUrl>#" + KML_STYLE + "</styleUrl>");
+                }
+                w.write("<ExtendedData>");
+                for (AttributeDescriptor ad : type.getAttributeDescriptors()) {
+                    if (ad instanceof GeometryDescriptor) {
+                        continue;
+                    }
+                    Object value = f.getAttribute(ad.getLocalName());
+                    w.write("<Data name=\"");
+                    w.write(StringEscapeUtils.escapeXml(ad.getLocalName()));
+                    w.write("\"><value>");
+                    if (value instanceof Date && !(value instanceof java.sql.Date)) {
+                        w.write(MosaicTimeConfig.UTC_FORMAT.format((Date) value));
+                    } else if (value != null) {
+                        w.write(StringEscapeUtils.escapeXml(value.toString()));
+                    }
+                    w.write("</value></Data>");
+                }
+                w.write("</ExtendedData>");
+                Object geometry = f.getDefaultGeometry();
+                if (geometry instanceof Geometry) {
+                    writeKmlGeometry((Geometry) geometry, w);
+                }
+                w.write("</Placemark>\n");
+                count++;
+            }
+        } finally {
+            it.close();
+        }
+        w.write("</Document></kml>\n");
+        return count;
+    }
+
+    /**
+     * The style of the placemarks, from the one the WMS applies to the KML: the fill, opacity
+     * and size of the mark of the points, the stroke of the lines, the fill of the polygons.
+     */
+    private static void writeKmlStyle(Style style, Writer w) throws IOException {
+        w.write("<Style id=\"" + KML_STYLE + "\">");
+        PointSymbolizer point = SLD.pointSymbolizer(style);
+        if (point != null) {
+            w.write("<IconStyle><color>");
+            w.write(toKmlColor(SLD.pointFill(point), SLD.pointOpacity(point)));
+            w.write("</color>");
+            int size = SLD.pointSize(point);
+            if (size > 0) {
+                w.write("<scale>" + (double) size / KML_ICON_SIZE + "</scale>");
+            }
+            w.write("<Icon><href>" + KML_ICON + "</href></Icon></IconStyle>");
+        }
+        LineSymbolizer line = SLD.lineSymbolizer(style);
+        if (line != null) {
+            w.write("<LineStyle><color>");
+            w.write(toKmlColor(SLD.lineColor(line), SLD.lineOpacity(line)));
+            w.write("</color>");
+            int width = SLD.lineWidth(line);
+            if (width > 0) {
+                w.write("<width>" + width + "</width>");
+            }
+            w.write("</LineStyle>");
+        }
+        PolygonSymbolizer polygon = SLD.polySymbolizer(style);
+        if (polygon != null) {
+            w.write("<PolyStyle><color>");
+            w.write(toKmlColor(SLD.polyFill(polygon), SLD.polyFillOpacity(polygon)));
+            w.write("</color></PolyStyle>");
+        }
+        w.write("</Style>\n");
+    }
+
+    /**
+     * @return the KML aabbggrr color, white and opaque by default
+     */
+    private static String toKmlColor(Color color, double opacity) {
+        int alpha = Double.isNaN(opacity) || opacity < 0 ? 255 : (int) Math.round(Math.min(
+                opacity, 1) * 255);
+        Color c = color != null ? color : Color.WHITE;
+        return String.format("%02x%02x%02x%02x", alpha, c.getBlue(), c.getGreen(), c.getRed());
+    }
+
+    private static void writeKmlGeometry(Geometry g, Writer w) throws IOException {
+        if (g instanceof Point) {
+            w.write("<Point>");
+            writeKmlCoordinates(g.getCoordinates(), w);
+            w.write("</Point>");
+        } else if (g instanceof LineString) {
+            // LinearRing too, only met inside polygons
+            w.write("<LineString>");
+            writeKmlCoordinates(g.getCoordinates(), w);
+            w.write("</LineString>");
+        } else if (g instanceof Polygon) {
+            Polygon p = (Polygon) g;
+            w.write("<Polygon><outerBoundaryIs><LinearRing>");
+            writeKmlCoordinates(p.getExteriorRing().getCoordinates(), w);
+            w.write("</LinearRing></outerBoundaryIs>");
+            for (int i = 0; i < p.getNumInteriorRing(); i++) {
+                w.write("<innerBoundaryIs><LinearRing>");
+                writeKmlCoordinates(p.getInteriorRingN(i).getCoordinates(), w);
+                w.write("</LinearRing></innerBoundaryIs>");
+            }
+            w.write("</Polygon>");
+        } else if (g instanceof GeometryCollection) {
+            w.write("<MultiGeometry>");
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                writeKmlGeometry(g.getGeometryN(i), w);
+            }
+            w.write("</MultiGeometry>");
+        } else {
+            LOGGER.fine("Geometry type '" + g.getGeometryType() + "' skipped in KML");
+        }
+    }
+
+    private static void writeKmlCoordinates(Coordinate[] coordinates, Writer w)
+            throws IOException {
+        w.write("<coordinates>");
+        for (int i = 0; i < coordinates.length; i++) {
+            if (i > 0) {
+                w.write(' ');
+            }
+            w.write(Double.toString(coordinates[i].x));
+            w.write(',');
+            w.write(Double.toString(coordinates[i].y));
+        }
+        w.write("</coordinates>");
+    }
+
+    /**
+     * A shapefile being written.
+     */
+    private static class ShapefileOutput {
+
+        private final ShapefileDataStore store;
+
+        private final FeatureWriter<SimpleFeatureType, SimpleFeature> writer;
+
+        ShapefileOutput(File shp, SimpleFeatureType type) throws IOException {
+            Map<String, Serializable> params = new HashMap<String, Serializable>();
+            params.put(ShapefileDataStoreFactory.URLP.key, shp.toURI().toURL());
+            store = (ShapefileDataStore) new ShapefileDataStoreFactory().createNewDataStore(params);
+            try {
+                store.createSchema(type);
+                writer = store.getFeatureWriterAppend(store.getTypeNames()[0],
+                        Transaction.AUTO_COMMIT);
+            } catch (IOException e) {
+                store.dispose();
+                throw e;
+            }
+        }
+
+        void write(SimpleFeature source, List<String> sourceNames) throws IOException {
+            SimpleFeature target = writer.next();
+            target.setAttribute(0, source.getDefaultGeometry());
+            for (int i = 0; i < sourceNames.size(); i++) {
+                Object value = source.getAttribute(sourceNames.get(i));
+                if (value instanceof Date && !(value instanceof java.sql.Date)) {
+                    value = MosaicTimeConfig.UTC_FORMAT.format((Date) value);
+                }
+                target.setAttribute(i + 1, value);
+            }
+            writer.write();
+        }
+
+        void close() throws IOException {
+            try {
+                writer.close();
+            } finally {
+                store.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.gs;
+
+import it.geosolutions.mariss.wps.monitor.CounterSource;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+import org.geotools.util.logging.Logging;
+
+/**
+ * The HTTP client of the vector data requests, shared by all the downloads. The connections to
+ * the WFS and WMS are pooled and kept alive, so the concurrent downloads do not pay the socket
+ * setup on each request. The idle connections are closed by a background thread.
+ */
+public class VectorHttpClient implements CounterSource {
+
+    static final Logger LOGGER = Logging.getLogger(VectorHttpClient.class);
+
+    private int maxConnectionsPerHost = 8;
+
+    private int maxTotalConnections = 32;
+
+    private int connectionTimeout = 10000;
+
+    private int readTimeout = 300000;
+
+    private long connectionWaitTimeout = 60000;
+
+    private long idleTimeout = 60000;
+
+    private long idleCheckInterval = 30000;
+
+    private int retries = 3;
+
+    private long retryDelay = 1000;
+
+    private long maxRetryDelay = 30000;
+
+    private MultiThreadedHttpConnectionManager manager;
+
+    private IdleConnectionTimeoutThread idleThread;
+
+    private HttpClient client;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong retried = new AtomicLong();
+
+    private final AtomicLong resumes = new AtomicLong();
+
+    private final AtomicLong resumedBytes = new AtomicLong();
+
+    private final AtomicLong invalidResponses = new AtomicLong();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger peakActive = new AtomicInteger();
+
+    /**
+     * @param maxConnectionsPerHost the connections opened to a single host
+     */
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    /**
+     * @param connectionTimeout milliseconds to open a connection
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * @param readTimeout milliseconds without data before a response is dropped
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * @param connectionWaitTimeout milliseconds a request waits for a free connection of the pool
+     */
+    public void setConnectionWaitTimeout(long connectionWaitTimeout) {
+        this.connectionWaitTimeout = connectionWaitTimeout;
+    }
+
+    /**
+     * @param idleTimeout milliseconds after which an unused connection is closed
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setIdleCheckInterval(long idleCheckInterval) {
+        this.idleCheckInterval = idleCheckInterval;
+    }
+
+    /**
+     * @param retries the attempts after the first one of a vector output failing for a transient error
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @param retryDelay milliseconds before the first retry, doubled at each retry
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public void setMaxRetryDelay(long maxRetryDelay) {
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    int getRetries() {
+        return retries;
+    }
+
+    long getRetryDelay() {
+        return retryDelay;
+    }
+
+    long getMaxRetryDelay() {
+        return maxRetryDelay;
+    }
+
+    /**
+     * Create the pool, called by the application context.
+     */
+    public synchronized void init() {
+        if (client != null) {
+            return;
+        }
+        manager = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = manager.getParams();
+        params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        params.setMaxTotalConnections(maxTotalConnections);
+        params.setConnectionTimeout(connectionTimeout);
+        params.setSoTimeout(readTimeout);
+        // a pooled connection may have been closed by the server
+        params.setStaleCheckingEnabled(true);
+
+        client = new HttpClient(manager);
+        client.getParams().setConnectionManagerTimeout(connectionWaitTimeout);
+
+        idleThread = new IdleConnectionTimeoutThread();
+        idleThread.setName("VectorHttpClient-idle");
+        idleThread.setConnectionTimeout(idleTimeout);
+        idleThread.setTimeoutInterval(idleCheckInterval);
+        idleThread.addConnectionManager(manager);
+        idleThread.start();
+        LOGGER.info("Vector data HTTP pool created: " + maxConnectionsPerHost + " connections per host, "
+                + maxTotalConnections + " in total");
+    }
+
+    /**
+     * Close the pooled connections, called by the application context on close.
+     */
+    public synchronized void dispose() {
+        if (idleThread != null) {
+            idleThread.shutdown();
+            idleThread = null;
+        }
+        if (manager != null) {
+            manager.shutdown();
+            manager = null;
+        }
+        client = null;
+    }
+
+    /**
+     * Execute the request. The caller reads the response and must release the connection with
+     * {@link HttpMethod#releaseConnection()}.
+     *
+     * @return the HTTP status
+     */
+    public int execute(HttpMethod method) throws IOException {
+        HttpClient c;
+        synchronized (this) {
+            if (client == null) {
+                init();
+            }
+            c = client;
+        }
+        requests.incrementAndGet();
+        int now = active.incrementAndGet();
+        int peak;
+        while (now > (peak = peakActive.get()) && !peakActive.compareAndSet(peak, now)) {
+            // retry, another request changed the peak
+        }
+        try {
+            return c.executeMethod(method);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the requests sent since the start
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the requests that failed before a response was received
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the requests waiting for a connection or for the response headers
+     */
+    public int getActiveRequests() {
+        return active.get();
+    }
+
+    void recordRetry() {
+        retried.incrementAndGet();
+    }
+
+    void recordResume(long offset) {
+        resumes.incrementAndGet();
+        resumedBytes.addAndGet(offset);
+    }
+
+    void recordInvalidResponse() {
+        invalidResponses.incrementAndGet();
+    }
+
+    void recordBytes(long bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    /**
+     * @return the attempts made again after a transient failure
+     */
+    public long getRetriedAttempts() {
+        return retried.get();
+    }
+
+    /**
+     * @return the retries that went on from the bytes already written
+     */
+    public long getResumes() {
+        return resumes.get();
+    }
+
+    /**
+     * @return the bytes not written again thanks to the resumes
+     */
+    public long getResumedBytes() {
+        return resumedBytes.get();
+    }
+
+    /**
+     * @return the responses rejected: error status, exception report, unexpected content
+     */
+    public long getInvalidResponses() {
+        return invalidResponses.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public int getPeakActiveRequests() {
+        return peakActive.get();
+    }
+
+    public void collectCounters(Map<String, Number> counters) {
+        counters.put("vectorHttp.requests", getRequests());
+        counters.put("vectorHttp.failures", getFailures());
+        counters.put("vectorHttp.retries", getRetriedAttempts());
+        counters.put("vectorHttp.resumes", getResumes());
+        counters.put("vectorHttp.resumedBytes", getResumedBytes());
+        counters.put("vectorHttp.invalidResponses", getInvalidResponses());
+        counters.put("vectorHttp.bytesReceived", getBytesReceived());
+        counters.put("vectorHttp.activeRequests", getActiveRequests());
+        counters.put("vectorHttp.peakActiveRequests", getPeakActiveRequests());
+        counters.put("vectorHttp.connectionsInPool", getConnectionsInPool());
+    }
+
+    /**
+     * @return the connections open, in use or idle
+     */
+    public synchronized int getConnectionsInPool() {
+        return manager != null ? manager.getConnectionsInPool() : 0;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.monitor;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * The timings of the download stages and the counters of the download components, shared by
+ * the whole application. A stage is timed with:
+ *
+ * <pre>
+ * DownloadMetrics.Timer timer = DownloadMetrics.getInstance().start(DownloadMetrics.CATALOG_LOOKUP);
+ * try {
+ *     ...
+ *     timer.stop();
+ * } finally {
+ *     timer.close();
+ * }
+ * </pre>
+ *
+ * a timer closed without being stopped counts an error. The metrics are exposed as JMX MBeans
+ * under {@link #DOMAIN} and as text by {@link DownloadMetricsController}.
+ */
+public class DownloadMetrics {
+
+    static final Logger LOGGER = Logging.getLogger(DownloadMetrics.class);
+
+    public static final String DOMAIN = "it.geosolutions.mariss.wps";
+
+    public static final String EXECUTE = "execute";
+
+    /** the time spent by a download waiting in the queue of the scheduler */
+    public static final String ADMISSION_WAIT = "admission-wait";
+
+    public static final String CATALOG_LOOKUP = "catalog-lookup";
+
+    public static final String GRANULE_VALIDATION = "granule-validation";
+
+    public static final String GRANULE_INDEX = "granule-index";
+
+    /** the granules cut to the area of interest */
+    public static final String RASTER_SUBSET = "raster-subset";
+
+    public static final String CQL_BUILD = "cql-build";
+
+    /** followed by the kind of vector output */
+    public static final String VECTOR_FETCH = "vector-fetch.";
+
+    public static final String VECTOR_EXTRACT = "vector-extract.";
+
+    public static final String ARCHIVE_ENCODE = "archive-encode";
+
+    public static final String ARCHIVE_TAR = "archive-tar";
+
+    public static final String ARCHIVE_TAR_ZSTD = "archive-tar-zstd";
+
+    /** an archive sent as is, from the result cache */
+    public static final String ARCHIVE_COPY = "archive-copy";
+
+    private static final DownloadMetrics INSTANCE = new DownloadMetrics();
+
+    private final ConcurrentMap<String, StageMetrics> stages = new ConcurrentHashMap<String, StageMetrics>();
+
+    private final List<CounterSource> sources = new CopyOnWriteArrayList<CounterSource>();
+
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    private boolean jmxEnabled;
+
+    public static DownloadMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    DownloadMetrics() {
+    }
+
+    /**
+     * @param sources the components whose counters are reported with the stages
+     */
+    public void setCounterSources(List<CounterSource> sources) {
+        this.sources.clear();
+        this.sources.addAll(sources);
+    }
+
+    public void addCounterSource(CounterSource source) {
+        sources.add(source);
+    }
+
+    /**
+     * Register the MBeans, the stages seen later are registered as they show up. Called by the
+     * application context.
+     */
+    public synchronized void registerMBeans() {
+        jmxEnabled = true;
+        register(objectName("type=DownloadMetrics,name=counters"), new DownloadCounters(this));
+        for (StageMetrics stage : stages.values()) {
+            registerStage(stage);
+        }
+    }
+
+    /**
+     * Unregister the MBeans, called by the application context on close.
+     */
+    public synchronized void unregisterMBeans() {
+        jmxEnabled = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (Exception e) {
+                LOGGER.fine(e.getMessage());
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * @return a running timer of the stage
+     */
+    public Timer start(String stage) {
+        return new Timer(getStage(stage));
+    }
+
+    /**
+     * @return the metrics of the stage, created on first use
+     */
+    public StageMetrics getStage(String name) {
+        StageMetrics stage = stages.get(name);
+        if (stage == null) {
+            StageMetrics created = new StageMetrics(name);
+            stage = stages.putIfAbsent(name, created);
+            if (stage == null) {
+                stage = created;
+                synchronized (this) {
+                    if (jmxEnabled) {
+                        registerStage(stage);
+                    }
+                }
+            }
+        }
+        return stage;
+    }
+
+    /**
+     * @return the stages sorted by name
+     */
+    public List<StageMetrics> getStages() {
+        return new ArrayList<StageMetrics>(new TreeMap<String, StageMetrics>(stages).values());
+    }
+
+    /**
+     * @return the counters of all the sources, sorted by name
+     */
+    public SortedMap<String, Number> getCounters() {
+        SortedMap<String, Number> counters = new TreeMap<String, Number>();
+        for (CounterSource source : sources) {
+            try {
+                source.collectCounters(counters);
+            } catch (RuntimeException e) {
+                // a broken source must not hide the others
+                LOGGER.log(Level.FINE, e.getMessage(), e);
+            }
+        }
+        return counters;
+    }
+
+    public void reset() {
+        for (StageMetrics stage : stages.values()) {
+            stage.reset();
+        }
+    }
+
+    /**
+     * Write the stages and the counters as key=value lines.
+     */
+    public void report(PrintWriter w) {
+        for (StageMetrics stage : getStages()) {
+            String prefix = "stage." + stage.getName() + ".";
+            line(w, prefix + "count", stage.getCount());
+            line(w, prefix + "errors", stage.getErrors());
+            line(w, prefix + "mean_ms", format(stage.getMeanMillis()));
+            line(w, prefix + "p50_ms", format(stage.getP50Millis()));
+            line(w, prefix + "p90_ms", format(stage.getP90Millis()));
+            line(w, prefix + "p99_ms", format(stage.getP99Millis()));
+            line(w, prefix + "max_ms", format(stage.getMaxMillis()));
+            if (stage.getTotalBytes() > 0) {
+                line(w, prefix + "bytes_total", stage.getTotalBytes());
+                line(w, prefix + "bytes_p50", stage.getP50Bytes());
+                line(w, prefix + "bytes_p99", stage.getP99Bytes());
+                line(w, prefix + "bytes_max", stage.getMaxBytes());
+            }
+        }
+        for (Map.Entry<String, Number> counter : getCounters().entrySet()) {
+            line(w, "counter." + counter.getKey(), counter.getValue());
+        }
+    }
+
+    /**
+     * Plain \n terminated lines, as the status of the download jobs.
+     */
+    private static void line(PrintWriter w, String key, Object value) {
+        w.append(key).append('=').append(String.valueOf(value)).append('\n');
+    }
+
+    private static String format(double millis) {
+        return String.format(Locale.ENGLISH, "%.3f", millis);
+    }
+
+    private void registerStage(StageMetrics stage) {
+        register(objectName("type=DownloadMetrics,stage=" + ObjectName.quote(stage.getName())), stage);
+    }
+
+    private void register(ObjectName name, Object mbean) {
+        if (name == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                // left by a previous deployment of the webapp
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(mbean, name);
+            registered.add(name);
+        } catch (Exception e) {
+            LOGGER.warning("Unable to register the MBean " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a name of the domain, null if malformed
+     */
+    private static ObjectName objectName(String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties);
+        } catch (Exception e) {
+            LOGGER.warning("Invalid MBean name " + properties + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Measures one run of a stage.
+     */
+    public static class Timer {
+
+        private final StageMetrics stage;
+
+        private final long start = System.nanoTime();
+
+        private boolean done;
+
+        Timer(StageMetrics stage) {
+            this.stage = stage;
+        }
+
+        public void stop() {
+            stop(-1);
+        }
+
+        /**
+         * Record the run as successful.
+         *
+         * @param bytes the bytes produced or read by the run
+         */
+        public void stop(long bytes) {
+            if (!done) {
+                done = true;
+                stage.record(System.nanoTime() - start, bytes);
+            }
+        }
+
+        /**
+         * Record the run as failed, unless already stopped.
+         */
+        public void close() {
+            if (!done) {
+                done = true;
+                stage.recordError();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The durations, in microseconds, and the bytes of the runs of a download stage. The failed
+ * runs are counted apart, their durations are not recorded.
+ */
+public class StageMetrics implements StageMetricsMBean {
+
+    private final String name;
+
+    private final Histogram durations = new Histogram();
+
+    private final Histogram bytes = new Histogram();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    StageMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param nanos the duration of the run
+     * @param size the bytes produced or read by the run, negative if not relevant
+     */
+    void record(long nanos, long size) {
+        durations.record(nanos / 1000);
+        if (size >= 0) {
+            bytes.record(size);
+        }
+    }
+
+    void recordError() {
+        errors.incrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return durations.getCount();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public double getMeanMillis() {
+        return durations.getMean() / 1000;
+    }
+
+    public double getP50Millis() {
+        return durations.getPercentile(0.5) / 1000d;
+    }
+
+    public double getP90Millis() {
+        return durations.getPercentile(0.9) / 1000d;
+    }
+
+    public double getP99Millis() {
+        return durations.getPercentile(0.99) / 1000d;
+    }
+
+    public double getMaxMillis() {
+        return durations.getMax() / 1000d;
+    }
+
+    public long getTotalBytes() {
+        return bytes.getSum();
+    }
+
+    public long getP50Bytes() {
+        return bytes.getPercentile(0.5);
+    }
+
+    public long getP99Bytes() {
+        return bytes.getPercentile(0.99);
+    }
+
+    public long getMaxBytes() {
+        return bytes.getMax();
+    }
+
+    public void reset() {
+        durations.reset();
+        bytes.reset();
+        errors.set(0);
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import it.geosolutions.mariss.wps.monitor.CounterSource;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Keep the raw deflate data of the granules on disk, with their CRC and sizes, so that a granule
+ * requested again is copied in the archive as it is instead of being compressed again. The blobs
+ * are keyed by a hash of the path, size and modification time of the granule and of the deflate
+ * level: a granule replaced on disk gets a new key, its old blob ages out.
+ * <p>
+ * The cache is filled lazily: the first archive of a granule deflates it as usual and writes the
+ * deflated data to the cache at the same time. The total size is bounded, the least recently
+ * used blobs are evicted first.
+ */
+public class DeflatedGranuleCache implements CounterSource {
+
+    static final Logger LOGGER = Logging.getLogger(DeflatedGranuleCache.class);
+
+    private static final String SUFFIX = ".deflate";
+
+    private static final String INFO_SUFFIX = ".properties";
+
+    /** key -> blob, in access order */
+    private final LinkedHashMap<String, Blob> entries = new LinkedHashMap<String, Blob>(16, 0.75f, true);
+
+    /** the keys being written by an archive */
+    private final Set<String> populating = new HashSet<String>();
+
+    private File cacheDirectory;
+
+    private long maxSize = 50L * 1024 * 1024 * 1024;
+
+    private long minFileSize = 1024 * 1024;
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong hitBytes = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param cacheDirectory where the blobs are kept
+     */
+    public void setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = new File(cacheDirectory);
+    }
+
+    /**
+     * @param maxSize the max total size of the blobs, in bytes
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * @param minFileSize smaller granules are deflated each time, not worth a blob
+     */
+    public void setMinFileSize(long minFileSize) {
+        this.minFileSize = minFileSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    /**
+     * The hits and misses, hitBytes is the size of the granules archived without compressing
+     * them.
+     */
+    public void collectCounters(Map<String, Number> counters) {
+        long h = getHits();
+        long m = getMisses();
+        counters.put("granuleCache.hits", h);
+        counters.put("granuleCache.misses", m);
+        counters.put("granuleCache.hitRatePercent", h + m > 0 ? h * 100 / (h + m) : 0);
+        counters.put("granuleCache.hitBytes", hitBytes.get());
+        counters.put("granuleCache.evictions", getEvictions());
+        counters.put("granuleCache.size", getSize());
+        counters.put("granuleCache.entries", getEntries());
+    }
+
+    /**
+     * Load the blobs left by the previous run, oldest first. Called by the application context.
+     */
+    public synchronized void init() {
+        if (cacheDirectory == null) {
+            throw new IllegalStateException("The cache directory is not configured");
+        }
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            throw new IllegalStateException("Unable to create the cache directory '"
+                    + cacheDirectory + "'");
+        }
+        File[] files = cacheDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(SUFFIX)) {
+                String key = name.substring(0, name.length() - SUFFIX.length());
+                Blob blob = readInfo(key);
+                if (blob != null && blob.compressedSize == f.length()) {
+                    entries.put(key, blob);
+                    size += blob.compressedSize;
+                } else {
+                    LOGGER.warning("Incomplete granule blob " + name + ", removed");
+                    f.delete();
+                    getInfo(key).delete();
+                }
+            } else if (name.endsWith(".part")) {
+                f.delete();
+            } else if (name.endsWith(INFO_SUFFIX)
+                    && !getBlob(name.substring(0, name.length() - INFO_SUFFIX.length())).exists()) {
+                // left by a run stopped while adding the blob
+                f.delete();
+            }
+        }
+        evict();
+        LOGGER.info("Granule cache loaded: " + entries.size() + " blobs, " + size + " bytes");
+    }
+
+    /**
+     * @return the deflated data of the granule, opened so that an eviction does not pull it from
+     *         under the caller on unix, null on a miss. The caller closes it.
+     */
+    public Hit open(File granule, int level) {
+        if (granule.length() < minFileSize) {
+            return null;
+        }
+        String key = computeKey(granule, level);
+        Hit hit = null;
+        synchronized (this) {
+            Blob blob = entries.get(key);
+            if (blob != null) {
+                File data = getBlob(key);
+                try {
+                    if (data.length() != blob.compressedSize) {
+                        throw new IOException("size " + data.length() + ", expected "
+                                + blob.compressedSize);
+                    }
+                    hit = new Hit(blob, new FileInputStream(data));
+                } catch (IOException e) {
+                    LOGGER.warning("Granule blob " + key + " unreadable, removed: " + e.getMessage());
+                    remove(key);
+                }
+            }
+        }
+        if (hit == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        hitBytes.addAndGet(hit.getSize());
+        LOGGER.fine("Granule cache hit " + granule.getName());
+        return hit;
+    }
+
+    /**
+     * Start writing the blob of a granule after a miss.
+     *
+     * @return null if the granule is too small or too large to be cached, or another archive is
+     *         writing its blob already
+     */
+    public Population populate(File granule, int level) {
+        long length = granule.length();
+        if (length < minFileSize || length > maxSize) {
+            return null;
+        }
+        String key = computeKey(granule, level);
+        synchronized (this) {
+            if (entries.containsKey(key) || !populating.add(key)) {
+                return null;
+            }
+        }
+        return new Population(key, granule);
+    }
+
+    private synchronized void put(String key, File part, Blob blob) {
+        populating.remove(key);
+        if (blob.compressedSize > maxSize || part.length() != blob.compressedSize) {
+            part.delete();
+            return;
+        }
+        remove(key);
+        File data = getBlob(key);
+        if (!writeInfo(key, blob) || !part.renameTo(data)) {
+            LOGGER.warning("Unable to add the granule blob " + key + " to the cache");
+            part.delete();
+            getInfo(key).delete();
+            return;
+        }
+        entries.put(key, blob);
+        size += blob.compressedSize;
+        evict();
+    }
+
+    private synchronized void abort(String key, File part) {
+        populating.remove(key);
+        part.delete();
+    }
+
+    private File getBlob(String key) {
+        return new File(cacheDirectory, key + SUFFIX);
+    }
+
+    private File getInfo(String key) {
+        return new File(cacheDirectory, key + INFO_SUFFIX);
+    }
+
+    private boolean writeInfo(String key, Blob blob) {
+        Properties info = new Properties();
+        info.setProperty("crc", String.valueOf(blob.crc));
+        info.setProperty("size", String.valueOf(blob.size));
+        info.setProperty("compressedSize", String.valueOf(blob.compressedSize));
+        info.setProperty("granule", blob.granule);
+        try {
+            OutputStream os = new FileOutputStream(getInfo(key));
+            try {
+                info.store(os, null);
+            } finally {
+                os.close();
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.warning(e.getMessage());
+            return false;
+        }
+    }
+
+    private Blob readInfo(String key) {
+        File f = getInfo(key);
+        if (!f.exists()) {
+            return null;
+        }
+        Properties info = new Properties();
+        try {
+            InputStream in = new FileInputStream(f);
+            try {
+                info.load(in);
+            } finally {
+                in.close();
+            }
+            return new Blob(info.getProperty("granule"), Long.parseLong(info.getProperty("crc")),
+                    Long.parseLong(info.getProperty("size")), Long.parseLong(info
+                            .getProperty("compressedSize")));
+        } catch (IOException e) {
+            LOGGER.warning(e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.warning("Invalid granule blob info " + f.getName());
+        }
+        return null;
+    }
+
+    private void remove(String key) {
+        Blob blob = entries.remove(key);
+        if (blob != null) {
+            size -= blob.compressedSize;
+            // the blob may still be copied, on unix the data survive until it is closed
+            getBlob(key).delete();
+            getInfo(key).delete();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Blob>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Blob> entry = it.next();
+            it.remove();
+            size -= entry.getValue().compressedSize;
+            getBlob(entry.getKey()).delete();
+            getInfo(entry.getKey()).delete();
+            evictions.incrementAndGet();
+            LOGGER.fine("Granule cache evicted " + entry.getValue().granule);
+        }
+    }
+
+    /**
+     * Hash the path, size and modification time of the granule and the deflate level.
+     */
+    static String computeKey(File granule, int level) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(granule.getAbsolutePath().getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update((granule.length() + ":" + granule.lastModified() + ":" + level)
+                    .getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Blob {
+
+        final String granule;
+
+        final long crc;
+
+        final long size;
+
+        final long compressedSize;
+
+        Blob(String granule, long crc, long size, long compressedSize) {
+            this.granule = granule;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+        }
+    }
+
+    /**
+     * The open deflated data of a granule, with what its ZIP entry needs.
+     */
+    public static class Hit {
+
+        private final Blob blob;
+
+        private final FileInputStream data;
+
+        Hit(Blob blob, FileInputStream data) {
+            this.blob = blob;
+            this.data = data;
+        }
+
+        public long getCrc() {
+            return blob.crc;
+        }
+
+        public long getSize() {
+            return blob.size;
+        }
+
+        public long getCompressedSize() {
+            return blob.compressedSize;
+        }
+
+        public FileInputStream getData() {
+            return data;
+        }
+
+        public void close() throws IOException {
+            data.close();
+        }
+    }
+
+    /**
+     * The blob of a granule written while the granule is deflated in an archive. A failure of the
+     * cache disk drops the blob, it never fails the archive.
+     */
+    public class Population {
+
+        private final String key;
+
+        private final File granule;
+
+        private final File part;
+
+        private final long length;
+
+        private final long lastModified;
+
+        private OutputStream os;
+
+        private boolean broken;
+
+        Population(String key, File granule) {
+            this.key = key;
+            this.granule = granule;
+            this.length = granule.length();
+            this.lastModified = granule.lastModified();
+            this.part = new File(cacheDirectory, key + SUFFIX + "." + UUID.randomUUID() + ".part");
+        }
+
+        /**
+         * @return receives the raw deflate data of the granule
+         */
+        public OutputStream open() {
+            return new OutputStream() {
+
+                @Override
+                public void write(int b) {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    if (broken) {
+                        return;
+                    }
+                    try {
+                        if (os == null) {
+                            os = new BufferedOutputStream(new FileOutputStream(part), 64 * 1024);
+                        }
+                        os.write(b, off, len);
+                    } catch (IOException e) {
+                        LOGGER.warning("Unable to write the blob of '" + granule.getName()
+                                + "': " + e.getMessage());
+                        broken = true;
+                    }
+                }
+
+                @Override
+                public void close() {
+                    // closed by completed or failed
+                }
+            };
+        }
+
+        /**
+         * Add the blob to the cache.
+         *
+         * @param crc the CRC of the granule
+         */
+        public void completed(long crc) {
+            closeStream();
+            if (broken || os == null) {
+                abort(key, part);
+                return;
+            }
+            if (granule.length() != length || granule.lastModified() != lastModified) {
+                LOGGER.info("Granule '" + granule.getName() + "' changed while archived, not cached");
+                abort(key, part);
+                return;
+            }
+            put(key, part, new Blob(granule.getAbsolutePath(), crc, length, part.length()));
+            LOGGER.fine("Granule cache filled with " + granule.getName());
+        }
+
+        /**
+         * Drop the partial blob, the archive failed.
+         */
+        public void failed() {
+            closeStream();
+            abort(key, part);
+        }
+
+        private void closeStream() {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    LOGGER.warning(e.getMessage());
+                    broken = true;
+                }
+            }
+        }
+    }
+}
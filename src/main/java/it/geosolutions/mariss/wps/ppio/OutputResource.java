@@ -21,6 +21,8 @@
 package it.geosolutions.mariss.wps.ppio;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -31,13 +33,31 @@ import java.util.List;
  */
 public class OutputResource {
 
+    /**
+     * Receives a copy of the archive while it is written.
+     */
+    public interface ArchiveCopy {
+
+        OutputStream open() throws IOException;
+
+        /**
+         * Called once the archive has been written, or has failed.
+         */
+        void completed(boolean success);
+    }
+
     private List<File> delOutputList;
     private List<File> undelOutputList;
+    private List<StreamSource> streamOutputList;
+    private File archive;
+    private ArchiveCopy archiveCopy;
+    private List<Runnable> releaseHooks = new ArrayList<Runnable>();
     
     public OutputResource(){
         
         delOutputList = new ArrayList<File>();
         undelOutputList = new ArrayList<File>();
+        streamOutputList = new ArrayList<StreamSource>();
     }
     
     public void addDeletableResource(File f){
@@ -48,6 +68,18 @@ public class OutputResource {
         undelOutputList.add(f);
     }
     
+    /**
+     * @param source a resource produced while the archive is written
+     */
+    public void addStreamResource(StreamSource source){
+        streamOutputList.add(source);
+    }
+    
+    public Iterator<StreamSource> getStreamResourcesIterator(){
+        
+        return streamOutputList.iterator();
+    }
+    
     public Iterator<File> getDeletableResourcesIterator(){
         
         return delOutputList.iterator();
@@ -57,4 +89,44 @@ public class OutputResource {
         
         return undelOutputList.iterator();
     }
+    
+    /**
+     * @param archive an archive built before, sent as it is instead of the resources
+     */
+    public void setArchive(File archive){
+        this.archive = archive;
+    }
+    
+    public File getArchive(){
+        return archive;
+    }
+    
+    public void setArchiveCopy(ArchiveCopy archiveCopy){
+        this.archiveCopy = archiveCopy;
+    }
+    
+    public ArchiveCopy getArchiveCopy(){
+        return archiveCopy;
+    }
+    
+    /**
+     * @param hook called once by {@link #release()}, e.g. to free the place of the download in the scheduler
+     */
+    public synchronized void addReleaseHook(Runnable hook){
+        releaseHooks.add(hook);
+    }
+    
+    /**
+     * Run the release hooks, once the archive has been written or the download has failed.
+     */
+    public void release(){
+        List<Runnable> hooks;
+        synchronized (this) {
+            hooks = releaseHooks;
+            releaseHooks = new ArrayList<Runnable>();
+        }
+        for (Runnable hook : hooks) {
+            hook.run();
+        }
+    }
 }
@@ -0,0 +1,322 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import it.geosolutions.mariss.wps.monitor.DownloadMetrics;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.io.output.TeeOutputStream;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Write the content of an {@link OutputResource} as a ZIP archive. Used by
+ * {@link OutputResourcesPPIO} to stream the WPS response and by the asynchronous downloads to
+ * build the archive on disk.
+ */
+public class OutputResourceArchiver {
+
+    static final Logger LOGGER = Logging.getLogger(OutputResourceArchiver.class);
+
+    /**
+     * Notified after each archive entry.
+     */
+    public interface Listener {
+
+        /**
+         * @param bytesDone the size of the resources archived so far
+         * @param bytesTotal the size of all the resources
+         */
+        void progress(long bytesDone, long bytesTotal);
+    }
+
+    private ZipEntryPolicy entryPolicy = new ZipEntryPolicy();
+
+    private int compressionThreads = 1;
+
+    private int compressionBlockSize = 1024 * 1024;
+
+    private long parallelMinSize = 4 * 1024 * 1024;
+
+    private ParallelDeflater parallelDeflater;
+
+    private DeflatedGranuleCache granuleCache;
+
+    /**
+     * @param entryPolicy decides which files are stored and which are deflated
+     */
+    public void setEntryPolicy(ZipEntryPolicy entryPolicy) {
+        this.entryPolicy = entryPolicy;
+    }
+
+    /**
+     * @param compressionThreads the cores used to deflate the archives, shared by all the downloads. 1 disables the parallel compression
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * @param compressionBlockSize the size of the blocks compressed in parallel
+     */
+    public void setCompressionBlockSize(int compressionBlockSize) {
+        this.compressionBlockSize = compressionBlockSize;
+    }
+
+    /**
+     * @param parallelMinSize smaller entries are always compressed on the request thread
+     */
+    public void setParallelMinSize(long parallelMinSize) {
+        this.parallelMinSize = parallelMinSize;
+    }
+
+    /**
+     * @param granuleCache the deflated granules, copied in the archives without compressing them
+     *        again, null to always deflate
+     */
+    public void setGranuleCache(DeflatedGranuleCache granuleCache) {
+        this.granuleCache = granuleCache;
+    }
+
+    /**
+     * Stops the compression threads, called by the application context on close.
+     */
+    public synchronized void dispose() {
+        if (parallelDeflater != null) {
+            parallelDeflater.dispose();
+            parallelDeflater = null;
+        }
+    }
+
+    private synchronized ParallelDeflater getParallelDeflater() {
+        if (parallelDeflater == null && compressionThreads > 1 && ParallelDeflater.isSupported()) {
+            parallelDeflater = new ParallelDeflater(compressionThreads, compressionBlockSize);
+        }
+        return parallelDeflater;
+    }
+
+    /**
+     * Write the archive, the deletable resources are removed once archived. The output stream
+     * is not closed.
+     */
+    public void write(OutputResource or, OutputStream os, Listener listener) throws IOException {
+
+        if (or.getArchive() != null) {
+            DownloadMetrics.Timer timer = DownloadMetrics.getInstance().start(DownloadMetrics.ARCHIVE_COPY);
+            try {
+                copyArchive(or.getArchive(), os, listener);
+                timer.stop(or.getArchive().length());
+            } finally {
+                timer.close();
+            }
+            return;
+        }
+        DownloadMetrics.Timer timer = DownloadMetrics.getInstance().start(DownloadMetrics.ARCHIVE_ENCODE);
+        try {
+            // counted by the writer, the target must reach it as it is for the file transfers
+            timer.stop(writeArchive(or, os, listener));
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * @return the size of the archive
+     */
+    private long writeArchive(OutputResource or, OutputStream os, Listener listener) throws IOException {
+        OutputResource.ArchiveCopy copy = or.getArchiveCopy();
+        if (copy == null) {
+            return writeResources(or, os, listener);
+        }
+        // a result cache miss: the archive goes to the cache too, the writer gets a tee and
+        // copies the file bodies through the heap, not with the file transfers
+        OutputStream copyStream = copy.open();
+        boolean success = false;
+        try {
+            long written = writeResources(or, new TeeOutputStream(os, copyStream), listener);
+            copyStream.close();
+            success = true;
+            return written;
+        } finally {
+            if (!success) {
+                try {
+                    copyStream.close();
+                } catch (IOException e) {
+                    LOGGER.severe(e.getMessage());
+                }
+            }
+            copy.completed(success);
+        }
+    }
+
+    private void copyArchive(File archive, OutputStream os, Listener listener) throws IOException {
+        long length = archive.length();
+        FileInputStream in = new FileInputStream(archive);
+        try {
+            FileChannel channel = in.getChannel();
+            WritableByteChannel target = os instanceof FileOutputStream ? ((FileOutputStream) os)
+                    .getChannel() : Channels.newChannel(os);
+            long position = 0;
+            while (position < length) {
+                long sent = channel.transferTo(position, length - position, target);
+                if (sent <= 0) {
+                    throw new EOFException("The archive '" + archive.getName() + "' has been truncated");
+                }
+                position += sent;
+            }
+        } finally {
+            in.close();
+        }
+        if (listener != null) {
+            listener.progress(length, length);
+        }
+    }
+
+    private long writeResources(OutputResource or, OutputStream os, Listener listener) throws IOException {
+
+        long bytesTotal = 0;
+        Iterator<File> sizes = or.getDeletableResourcesIterator();
+        while (sizes.hasNext()) {
+            bytesTotal += sizes.next().length();
+        }
+        sizes = or.getUndeletableResourcesIterator();
+        while (sizes.hasNext()) {
+            bytesTotal += sizes.next().length();
+        }
+        Iterator<StreamSource> sources = or.getStreamResourcesIterator();
+        while (sources.hasNext()) {
+            bytesTotal += Math.max(0, sources.next().getSizeHint());
+        }
+        long bytesDone = 0;
+
+        StreamingZipWriter zos = new StreamingZipWriter(os);
+
+        Iterator<File> iter = or.getDeletableResourcesIterator();
+        while (iter.hasNext()) {
+
+            File tmp = iter.next();
+            if (!tmp.exists() || !tmp.canRead() || !tmp.canWrite()) {
+                LOGGER.warning("Skip Deletable file '" + tmp.getName()
+                        + "' some problems occurred...");
+                continue;
+            }
+
+            addToZip(tmp, zos, null);
+            bytesDone += tmp.length();
+            if (listener != null) {
+                listener.progress(bytesDone, bytesTotal);
+            }
+
+            if (!tmp.delete()) {
+                LOGGER.warning("File '" + tmp.getName() + "' cannot be deleted...");
+            }
+        }
+
+        Iterator<StreamSource> iter3 = or.getStreamResourcesIterator();
+        while (iter3.hasNext()) {
+
+            StreamSource source = iter3.next();
+            long start = zos.getBytesWritten();
+            zos.putDeflated(source.getName(), System.currentTimeMillis(),
+                    entryPolicy.getStreamLevel(source.getName()), source);
+            LOGGER.fine("Streamed '" + source.getName() + "', " + (zos.getBytesWritten() - start)
+                    + " bytes in the archive");
+            bytesDone += Math.max(0, source.getSizeHint());
+            if (listener != null) {
+                listener.progress(bytesDone, bytesTotal);
+            }
+        }
+
+        Iterator<File> iter2 = or.getUndeletableResourcesIterator();
+        while (iter2.hasNext()) {
+
+            File tmp = iter2.next();
+            if (!tmp.exists() || !tmp.canRead()) {
+                LOGGER.warning("Skip Undeletable file '" + tmp.getName()
+                        + "' some problems occurred...");
+                continue;
+            }
+
+            // the granules are the same file after file, the deletable resources never
+            addToZip(tmp, zos, granuleCache);
+            bytesDone += tmp.length();
+            if (listener != null) {
+                listener.progress(bytesDone, bytesTotal);
+            }
+        }
+        zos.finish();
+        return zos.getBytesWritten();
+    }
+
+    /**
+     * @param cache the deflated data of the file, null if it must not be cached
+     */
+    private void addToZip(File f, StreamingZipWriter zos, DeflatedGranuleCache cache)
+            throws IOException {
+
+        if (entryPolicy.getMethod(f) == ZipEntry.STORED) {
+            // already compressed data, just copy it
+            zos.putStored(f.getName(), f);
+            return;
+        }
+        int level = entryPolicy.getDeflateLevel();
+        DeflatedGranuleCache.Population population = null;
+        if (cache != null) {
+            DeflatedGranuleCache.Hit hit = cache.open(f, level);
+            if (hit != null) {
+                try {
+                    zos.putPrecompressed(f.getName(), f.lastModified(), hit.getCrc(),
+                            hit.getSize(), hit.getCompressedSize(), hit.getData());
+                } finally {
+                    hit.close();
+                }
+                return;
+            }
+            population = cache.populate(f, level);
+        }
+        ParallelDeflater deflater = f.length() >= parallelMinSize ? getParallelDeflater() : null;
+        if (population == null) {
+            zos.putDeflated(f.getName(), f, level, deflater, null);
+            return;
+        }
+        boolean success = false;
+        try {
+            long crc = zos.putDeflated(f.getName(), f, level, deflater, population.open());
+            population.completed(crc);
+            success = true;
+        } finally {
+            if (!success) {
+                population.failed();
+            }
+        }
+    }
+}
@@ -21,18 +21,12 @@
  */
 package it.geosolutions.mariss.wps.ppio;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Iterator;
 import java.util.logging.Logger;
-import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import org.apache.commons.io.IOUtils;
 import org.geoserver.wps.ppio.BinaryPPIO;
 import org.geotools.util.logging.Logging;
 
@@ -44,6 +38,8 @@ public class OutputResourcesPPIO extends BinaryPPIO {
 
     static final Logger LOGGER = Logging.getLogger(OutputResourcesPPIO.class);
 
+    private OutputResourceArchiver archiver = new OutputResourceArchiver();
+
     /**
      * @param externalType
      * @param internalType
@@ -53,6 +49,13 @@ public class OutputResourcesPPIO extends BinaryPPIO {
         super(ZipOutputStream.class, OutputResource.class, "application/zip");
     }
 
+    /**
+     * @param archiver writes the ZIP, shared with the asynchronous downloads
+     */
+    public void setArchiver(OutputResourceArchiver archiver) {
+        this.archiver = archiver;
+    }
+
     @Override
     public Object decode(InputStream input) throws Exception {
         return null;
@@ -61,48 +64,13 @@ public class OutputResourcesPPIO extends BinaryPPIO {
     @Override
     public void encode(Object value, OutputStream os) throws Exception{
 
-        ZipOutputStream zos = null;
+        OutputResource or = (OutputResource) value;
         try {
-            OutputResource or = (OutputResource) value;
-
-            zos = new ZipOutputStream(os);
-            zos.setMethod(ZipOutputStream.DEFLATED);
-            zos.setLevel(Deflater.DEFAULT_COMPRESSION);
-
-            Iterator<File> iter = or.getDeletableResourcesIterator();
-            while (iter.hasNext()) {
-
-                File tmp = iter.next();
-                if (!tmp.exists() || !tmp.canRead() || !tmp.canWrite()) {
-                    LOGGER.warning("Skip Deletable file '" + tmp.getName()
-                            + "' some problems occurred...");
-                    continue;
-                }
-
-                addToZip(tmp, zos);
-
-                if (!tmp.delete()) {
-                    LOGGER.warning("File '" + tmp.getName() + "' cannot be deleted...");
-                }
-            }
-            iter = null;
-
-            Iterator<File> iter2 = or.getUndeletableResourcesIterator();
-            while (iter2.hasNext()) {
-
-                File tmp = iter2.next();
-                if (!tmp.exists() || !tmp.canRead()) {
-                    LOGGER.warning("Skip Undeletable file '" + tmp.getName()
-                            + "' some problems occurred...");
-                    continue;
-                }
-                
-                addToZip(tmp, zos);
-                
-            }
+            archiver.write(or, os, null);
         } finally {
+            or.release();
             try {
-                zos.close();
+                os.close();
             } catch (IOException e) {
                 LOGGER.severe(e.getMessage());
             }
@@ -114,25 +82,4 @@ public class OutputResourcesPPIO extends BinaryPPIO {
         return "zip";
     }
 
-    private static void addToZip(File f, ZipOutputStream zos) {
-
-        FileInputStream in = null;
-        try {
-            in = new FileInputStream(f);
-            zos.putNextEntry(new ZipEntry(f.getName()));
-            IOUtils.copy(in, zos);
-            zos.closeEntry();
-        } catch (IOException e) {
-            LOGGER.severe(e.getMessage());
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    LOGGER.severe(e.getMessage());
-                }
-            }
-        }
-    }
-
 }
@@ -0,0 +1,250 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Deflate large files on several cores, the way pigz does: the file is split in blocks, each
+ * block is compressed on its own using the last 32 KB of the previous block as dictionary, and
+ * ends with a sync flush so that the compressed blocks can be concatenated into a single valid
+ * deflate stream.
+ * <p>
+ * The worker threads are shared by all the downloads of the server, so the number of cores used
+ * for compression never exceeds the configured budget. Sync flush needs a Java 7 runtime, on
+ * Java 6 {@link #isSupported()} is false and the entries are deflated serially.
+ */
+public class ParallelDeflater {
+
+    static final Logger LOGGER = Logging.getLogger(ParallelDeflater.class);
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /** Deflater.SYNC_FLUSH, not available on Java 6 */
+    private static final int SYNC_FLUSH = 2;
+
+    private static final Method DEFLATE_WITH_FLUSH = lookupDeflateWithFlush();
+
+    private final ExecutorService executor;
+
+    private final int threads;
+
+    private final int blockSize;
+
+    public ParallelDeflater(int threads, int blockSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one compression thread is needed");
+        }
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("The block size cannot be smaller than "
+                    + DICTIONARY_SIZE);
+        }
+        this.threads = threads;
+        this.blockSize = blockSize;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ParallelDeflater-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static boolean isSupported() {
+        return DEFLATE_WITH_FLUSH != null;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void dispose() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Write the raw deflate stream of the file to the output.
+     *
+     * @return the CRC32 of the uncompressed data
+     */
+    public long deflate(File f, int level, OutputStream out) throws IOException {
+        long length = f.length();
+        long blocks = Math.max(1, (length + blockSize - 1) / blockSize);
+        // bound the memory used by a single entry: a couple of blocks per thread
+        int maxInFlight = threads * 2;
+
+        CRC32 crc = new CRC32();
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] dictionary = null;
+            for (long i = 0; i < blocks; i++) {
+                int size = (int) Math.min(blockSize, length - i * blockSize);
+                byte[] block = new byte[size];
+                readFully(in, block);
+                crc.update(block);
+                pending.add(executor.submit(new BlockTask(block, dictionary, level,
+                        i == blocks - 1)));
+                dictionary = tail(dictionary, block);
+
+                while (pending.size() >= maxInFlight) {
+                    out.write(get(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.write(get(pending.removeFirst()));
+            }
+        } finally {
+            in.close();
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static byte[] get(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Block compression failed: " + e.getCause());
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] block) throws IOException {
+        int off = 0;
+        while (off < block.length) {
+            int read = in.read(block, off, block.length - off);
+            if (read < 0) {
+                throw new EOFException("The file has been truncated while compressing it");
+            }
+            off += read;
+        }
+    }
+
+    /**
+     * The last 32 KB of data, the dictionary of the next block. A short block is appended to the
+     * previous dictionary.
+     */
+    private static byte[] tail(byte[] previous, byte[] block) {
+        if (block.length >= DICTIONARY_SIZE || previous == null) {
+            int len = Math.min(DICTIONARY_SIZE, block.length);
+            byte[] dict = new byte[len];
+            System.arraycopy(block, block.length - len, dict, 0, len);
+            return dict;
+        }
+        int keep = Math.min(previous.length, DICTIONARY_SIZE - block.length);
+        byte[] dict = new byte[keep + block.length];
+        System.arraycopy(previous, previous.length - keep, dict, 0, keep);
+        System.arraycopy(block, 0, dict, keep, block.length);
+        return dict;
+    }
+
+    private static Method lookupDeflateWithFlush() {
+        try {
+            return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class,
+                    int.class);
+        } catch (NoSuchMethodException e) {
+            LOGGER.info("Deflater sync flush is not available, parallel compression disabled");
+            return null;
+        }
+    }
+
+    /**
+     * Compress a single block to a byte aligned chunk of the deflate stream.
+     */
+    private static class BlockTask implements Callable<byte[]> {
+
+        private final byte[] block;
+
+        private final byte[] dictionary;
+
+        private final int level;
+
+        private final boolean last;
+
+        BlockTask(byte[] block, byte[] dictionary, int level, boolean last) {
+            this.block = block;
+            this.dictionary = dictionary;
+            this.level = level;
+            this.last = last;
+        }
+
+        public byte[] call() throws Exception {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(block);
+                ByteArrayOutputStream result = new ByteArrayOutputStream(block.length / 2 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        int len = deflater.deflate(buffer);
+                        result.write(buffer, 0, len);
+                    }
+                } else {
+                    // with sync flush a full buffer means there is more output pending
+                    int len;
+                    do {
+                        len = (Integer) DEFLATE_WITH_FLUSH.invoke(deflater, buffer, 0,
+                                buffer.length, SYNC_FLUSH);
+                        result.write(buffer, 0, len);
+                    } while (len == buffer.length);
+                }
+                return result.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A resource of the archive produced while the archive is written, for instance a WFS response,
+ * so that it does not need to be staged on disk first.
+ */
+public interface StreamSource {
+
+    /**
+     * @return the name of the archive entry
+     */
+    String getName();
+
+    /**
+     * The expected size reports the progress and decides the layout of the ZIP entry: a hint of 4
+     * GB or more gives the local header a ZIP64 extra field and the data descriptor 8 bytes sizes.
+     * With -1, or a hint too low, the entry is expected to stay under 4 GB: if it does not, the
+     * central directory still records the real sizes, but the readers going through the local
+     * headers only cannot read the archive, and the progress runs ahead of the total.
+     *
+     * @return the expected size in bytes, -1 if unknown
+     */
+    long getSizeHint();
+
+    /**
+     * Write the content, called once when the archive is written. The stream must not be closed.
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
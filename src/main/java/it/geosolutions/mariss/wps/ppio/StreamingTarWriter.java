@@ -0,0 +1,223 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Minimal POSIX tar writer streaming the entries straight to the output. The headers are ustar,
+ * a PAX extended header is added before the entries whose name does not fit in 100 ASCII
+ * characters or whose size does not fit in the 8 GB of the ustar size field.
+ * <p>
+ * The size of an entry goes in its header, before the data: the content must be of known size.
+ */
+public class StreamingTarWriter {
+
+    private static final int BLOCK_SIZE = 512;
+
+    /** the archive is padded to a multiple of this, as GNU tar does */
+    private static final int RECORD_SIZE = 20 * BLOCK_SIZE;
+
+    private static final int NAME_LENGTH = 100;
+
+    /** the largest size written in the 11 octal digits of the ustar field */
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private static final byte TYPE_FILE = '0';
+
+    private static final byte TYPE_PAX = 'x';
+
+    private final StreamingZipWriter.CountingOutputStream out;
+
+    private final byte[] buffer = new byte[256 * 1024];
+
+    private boolean finished;
+
+    public StreamingTarWriter(OutputStream os) {
+        // the headers are written a block at a time
+        this.out = new StreamingZipWriter.CountingOutputStream(new BufferedOutputStream(os, 64 * 1024));
+    }
+
+    /**
+     * Copy the file, the size is the one at the time of the header: a file growing meanwhile is
+     * truncated, a file shrinking fails the archive.
+     */
+    public void putFile(String name, File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            putEntry(name, f.lastModified(), f.length(), in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copy exactly size bytes of the stream, which is not closed.
+     */
+    public void putEntry(String name, long time, long size, InputStream in) throws IOException {
+        if (finished) {
+            throw new IOException("The archive has been finished");
+        }
+        byte[] nameBytes = name.getBytes("UTF-8");
+        boolean longName = nameBytes.length > NAME_LENGTH || !isAscii(nameBytes);
+        if (longName || size > MAX_USTAR_SIZE) {
+            writePaxHeader(name, longName, size);
+        }
+        writeHeader(longName ? truncate(nameBytes) : nameBytes, TYPE_FILE, time, size);
+
+        long left = size;
+        while (left > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (read < 0) {
+                throw new EOFException("Entry '" + name + "' is shorter than its " + size + " bytes");
+            }
+            out.write(buffer, 0, read);
+            left -= read;
+        }
+        pad();
+    }
+
+    /**
+     * Write the end of archive blocks, the underlying stream is not closed.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        out.write(new byte[2 * BLOCK_SIZE]);
+        int tail = (int) (out.getCount() % RECORD_SIZE);
+        if (tail > 0) {
+            out.write(new byte[RECORD_SIZE - tail]);
+        }
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getBytesWritten() {
+        return out.getCount();
+    }
+
+    private void writePaxHeader(String name, boolean longName, long size) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (longName) {
+            appendPaxRecord(sb, "path", name);
+        }
+        if (size > MAX_USTAR_SIZE) {
+            appendPaxRecord(sb, "size", String.valueOf(size));
+        }
+        byte[] records = sb.toString().getBytes("UTF-8");
+        writeHeader(truncate(("PaxHeaders/" + name).getBytes("UTF-8")), TYPE_PAX, System.currentTimeMillis(),
+                records.length);
+        out.write(records);
+        pad();
+    }
+
+    /**
+     * A PAX record is "length key=value\n", the length counting its own digits.
+     */
+    private static void appendPaxRecord(StringBuilder sb, String key, String value)
+            throws UnsupportedEncodingException {
+        int length = key.getBytes("UTF-8").length + value.getBytes("UTF-8").length + 3;
+        int digits = String.valueOf(length).length();
+        if (String.valueOf(length + digits).length() > digits) {
+            digits++;
+        }
+        sb.append(length + digits).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    private void writeHeader(byte[] name, byte type, long time, long size) throws IOException {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, Math.min(size, MAX_USTAR_SIZE));
+        octal(header, 136, 12, Math.max(0, time / 1000));
+        header[156] = type;
+        System.arraycopy("ustar\0".getBytes("US-ASCII"), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+
+        // computed with the checksum field made of spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        octal(header, 148, 7, checksum);
+        out.write(header);
+    }
+
+    /**
+     * Write the value as zero padded octal digits followed by a NUL.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int pad = length - 1 - digits.length();
+        for (int i = 0; i < pad; i++) {
+            header[offset + i] = '0';
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            header[offset + pad + i] = (byte) digits.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    private void pad() throws IOException {
+        int tail = (int) (out.getCount() % BLOCK_SIZE);
+        if (tail > 0) {
+            out.write(new byte[BLOCK_SIZE - tail]);
+        }
+    }
+
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The ustar name of an entry with a PAX path, the readers not knowing PAX at least get its
+     * beginning.
+     */
+    private static byte[] truncate(byte[] name) {
+        byte[] truncated = new byte[Math.min(name.length, NAME_LENGTH)];
+        for (int i = 0; i < truncated.length; i++) {
+            truncated[i] = name[i] < 0 ? (byte) '_' : name[i];
+        }
+        return truncated;
+    }
+}
@@ -0,0 +1,567 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import org.apache.commons.io.output.TeeOutputStream;
+
+/**
+ * Minimal ZIP writer that streams the entries straight to the output. Unlike
+ * {@link java.util.zip.ZipOutputStream} it lets the caller provide the raw deflated data of an
+ * entry, which is what {@link ParallelDeflater} produces.
+ * <p>
+ * Entries whose sizes are known upfront (STORED) get them in the local header, the others are
+ * followed by a data descriptor.
+ * <p>
+ * The ZIP64 extensions are used only where needed: an entry expected to reach 4 GB gets a ZIP64
+ * extra field in its local header and 8 bytes sizes in its data descriptor, the central
+ * directory records the sizes and offsets over 4 GB in ZIP64 extra fields, and a ZIP64 end of
+ * central directory is added when the archive has more than 65535 entries or its central
+ * directory starts beyond 4 GB. A stream source without a size hint is expected to stay under
+ * 4 GB: if it does not, the archive is still valid for the readers going through the central
+ * directory, not for the ones reading the local headers only.
+ */
+public class StreamingZipWriter {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int VERSION = 20;
+
+    private static final int VERSION_ZIP64 = 45;
+
+    /** sizes and CRC are in the data descriptor after the data */
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    /** file names are UTF-8 encoded */
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final long MAX_32 = 0xFFFFFFFFL;
+
+    private static final int MAX_16 = 0xFFFF;
+
+    /**
+     * Entries this large get the ZIP64 fields upfront, with a margin for the deflate overhead on
+     * incompressible data
+     */
+    private static final long ZIP64_THRESHOLD = MAX_32 - (MAX_32 >> 10);
+
+    private final OutputStream target;
+
+    private final CountingOutputStream out;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private final byte[] buffer = new byte[64 * 1024];
+
+    private Entry current;
+
+    private boolean finished;
+
+    public StreamingZipWriter(OutputStream os) {
+        this.target = os;
+        // the headers are written a few bytes at a time
+        this.out = new CountingOutputStream(new BufferedOutputStream(os, 64 * 1024));
+    }
+
+    /**
+     * Copy the file as a STORED entry, its CRC is computed with a first pass over the data. The
+     * file body is transferred by the kernel when the output is a file, copied through the heap
+     * otherwise.
+     */
+    public void putStored(String name, File f) throws IOException {
+        long size = f.length();
+        long crc = ZipEntryPolicy.computeCrc(f);
+        beginEntry(name, ZipEntry.STORED, f.lastModified(), crc, size, size, size >= ZIP64_THRESHOLD);
+        FileInputStream in = new FileInputStream(f);
+        try {
+            copyBody(in.getChannel(), size);
+        } finally {
+            in.close();
+        }
+        endEntry(crc, size, size);
+    }
+
+    /**
+     * Copy data deflated earlier, e.g. by {@link DeflatedGranuleCache}, as a DEFLATED entry. The
+     * sizes are known, they go in the local header, and the data is copied like the body of
+     * {@link #putStored(String, File)}, with no compression cost.
+     *
+     * @param deflated the raw deflate data, from its beginning, not closed
+     */
+    public void putPrecompressed(String name, long time, long crc, long size,
+            long compressedSize, FileInputStream deflated) throws IOException {
+        beginEntry(name, ZipEntry.DEFLATED, time, crc, compressedSize, size,
+                Math.max(size, compressedSize) >= ZIP64_THRESHOLD);
+        copyBody(deflated.getChannel(), compressedSize);
+        endEntry(crc, compressedSize, size);
+    }
+
+    /**
+     * Deflate the file on the calling thread.
+     */
+    public void putDeflated(String name, File f, int level) throws IOException {
+        putDeflated(name, f, level, null, null);
+    }
+
+    /**
+     * Deflate the file, the deflated data is written to the copy too.
+     *
+     * @param deflater compresses the blocks in parallel, null to deflate on the calling thread
+     * @param copy receives the raw deflate data of the entry, null for none, not closed
+     * @return the CRC of the file
+     */
+    public long putDeflated(String name, File f, int level, ParallelDeflater deflater,
+            OutputStream copy) throws IOException {
+        beginEntry(name, ZipEntry.DEFLATED, f.lastModified(), f.length());
+        long start = out.getCount();
+        OutputStream data = copy != null ? new TeeOutputStream(out, copy) : out;
+        if (deflater != null) {
+            long crc = deflater.deflate(f, level, data);
+            endEntry(crc, out.getCount() - start, f.length());
+            return crc;
+        }
+        CRC32 crc = new CRC32();
+        Deflater def = new Deflater(level, true);
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] deflated = new byte[buffer.length];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                def.setInput(buffer, 0, read);
+                while (!def.needsInput()) {
+                    int len = def.deflate(deflated);
+                    data.write(deflated, 0, len);
+                }
+            }
+            def.finish();
+            while (!def.finished()) {
+                int len = def.deflate(deflated);
+                data.write(deflated, 0, len);
+            }
+            endEntry(crc.getValue(), out.getCount() - start, def.getBytesRead());
+            return crc.getValue();
+        } finally {
+            in.close();
+            def.end();
+        }
+    }
+
+    /**
+     * Deflate the content written by the source on the calling thread, sizes and CRC go in the
+     * data descriptor.
+     */
+    public void putDeflated(String name, long time, int level, StreamSource source)
+            throws IOException {
+        beginEntry(name, ZipEntry.DEFLATED, time, source.getSizeHint());
+        long start = out.getCount();
+        DeflatingStream ds = new DeflatingStream(level);
+        try {
+            source.writeTo(ds);
+            ds.finish();
+            endEntry(ds.crc.getValue(), out.getCount() - start, ds.deflater.getBytesRead());
+        } finally {
+            ds.deflater.end();
+        }
+    }
+
+    /**
+     * Deflate the file splitting it in blocks compressed in parallel.
+     */
+    public void putDeflated(String name, File f, int level, ParallelDeflater deflater)
+            throws IOException {
+        putDeflated(name, f, level, deflater, null);
+    }
+
+    /**
+     * Write the central directory, the underlying stream is not closed.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (current != null) {
+            throw new ZipException("Entry '" + current.name + "' has not been closed");
+        }
+        long cdOffset = out.getCount();
+        for (Entry e : entries) {
+            // the ZIP64 extra holds, in this order, the values not fitting in their field
+            boolean largeSize = e.size >= MAX_32;
+            boolean largeCompressedSize = e.compressedSize >= MAX_32;
+            boolean largeOffset = e.offset >= MAX_32;
+            int extraSize = (largeSize ? 8 : 0) + (largeCompressedSize ? 8 : 0) + (largeOffset ? 8 : 0);
+            boolean zip64 = e.zip64 || extraSize > 0;
+            writeInt(CENTRAL_HEADER_SIGNATURE);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+            writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+            writeShort(e.flags);
+            writeShort(e.method);
+            writeInt(e.dosTime);
+            writeInt(e.crc);
+            writeInt(largeCompressedSize ? MAX_32 : e.compressedSize);
+            writeInt(largeSize ? MAX_32 : e.size);
+            writeShort(e.nameBytes.length);
+            writeShort(extraSize > 0 ? extraSize + 4 : 0); // extra
+            writeShort(0); // comment
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt(largeOffset ? MAX_32 : e.offset);
+            out.write(e.nameBytes);
+            if (extraSize > 0) {
+                writeShort(ZIP64_EXTRA_ID);
+                writeShort(extraSize);
+                if (largeSize) {
+                    writeLong(e.size);
+                }
+                if (largeCompressedSize) {
+                    writeLong(e.compressedSize);
+                }
+                if (largeOffset) {
+                    writeLong(e.offset);
+                }
+            }
+        }
+        long cdEnd = out.getCount();
+        long cdSize = cdEnd - cdOffset;
+        boolean zip64 = entries.size() >= MAX_16 || cdOffset >= MAX_32 || cdSize >= MAX_32;
+        if (zip64) {
+            writeInt(ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+            writeLong(44); // size of the remaining record
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0); // this disk
+            writeInt(0); // disk of the central directory
+            writeLong(entries.size());
+            writeLong(entries.size());
+            writeLong(cdSize);
+            writeLong(cdOffset);
+
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0); // disk of the ZIP64 end of central directory
+            writeLong(cdEnd);
+            writeInt(1); // total disks
+        }
+        writeInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(entries.size(), MAX_16));
+        writeShort(Math.min(entries.size(), MAX_16));
+        writeInt(Math.min(cdSize, MAX_32));
+        writeInt(Math.min(cdOffset, MAX_32));
+        writeShort(0);
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getBytesWritten() {
+        return out.getCount();
+    }
+
+    /**
+     * @param sizeHint the expected uncompressed size, negative if unknown
+     */
+    private void beginEntry(String name, int method, long time, long sizeHint) throws IOException {
+        beginEntry(name, method, time, -1, -1, -1, sizeHint >= ZIP64_THRESHOLD);
+    }
+
+    /**
+     * Write the local header, a negative crc means it will be in the data descriptor.
+     */
+    private void beginEntry(String name, int method, long time, long crc, long compressedSize,
+            long size, boolean zip64) throws IOException {
+        if (current != null) {
+            throw new ZipException("Entry '" + current.name + "' has not been closed");
+        }
+        Entry e = new Entry();
+        e.name = name;
+        e.nameBytes = name.getBytes("UTF-8");
+        e.method = method;
+        e.flags = FLAG_UTF8 | (crc < 0 ? FLAG_DATA_DESCRIPTOR : 0);
+        e.dosTime = toDosTime(time);
+        e.offset = out.getCount();
+        e.zip64 = zip64;
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION);
+        writeShort(e.flags);
+        writeShort(method);
+        writeInt(e.dosTime);
+        writeInt(crc < 0 ? 0 : crc);
+        if (zip64) {
+            // the sizes are in the extra field, zero until the data descriptor
+            writeInt(MAX_32);
+            writeInt(MAX_32);
+        } else {
+            writeInt(crc < 0 ? 0 : compressedSize);
+            writeInt(crc < 0 ? 0 : size);
+        }
+        writeShort(e.nameBytes.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(e.nameBytes);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(crc < 0 ? 0 : size);
+            writeLong(crc < 0 ? 0 : compressedSize);
+        }
+        current = e;
+    }
+
+    private void endEntry(long crc, long compressedSize, long size) throws IOException {
+        Entry e = current;
+        e.crc = crc;
+        e.compressedSize = compressedSize;
+        e.size = size;
+        if ((e.flags & FLAG_DATA_DESCRIPTOR) != 0) {
+            writeInt(DATA_DESCRIPTOR_SIGNATURE);
+            writeInt(crc);
+            if (e.zip64 || size >= MAX_32 || compressedSize >= MAX_32) {
+                writeLong(compressedSize);
+                writeLong(size);
+            } else {
+                writeInt(compressedSize);
+                writeInt(size);
+            }
+        }
+        entries.add(e);
+        current = null;
+    }
+
+    private void copyBody(FileChannel source, long size) throws IOException {
+        // the header must reach the target before the body is written around the buffer
+        out.flush();
+        if (target instanceof FileOutputStream) {
+            transferTo(source, size, ((FileOutputStream) target).getChannel());
+        } else {
+            // a stream channel copies to a heap array anyway, a direct buffer would add a copy
+            copy(source, size, target);
+        }
+        out.skip(size);
+    }
+
+    private static void transferTo(FileChannel source, long size, FileChannel dest)
+            throws IOException {
+        long position = 0;
+        while (position < size) {
+            long transferred = source.transferTo(position, size - position, dest);
+            if (transferred <= 0) {
+                throw new EOFException("The file has been truncated while copying it");
+            }
+            position += transferred;
+        }
+    }
+
+    private void copy(FileChannel source, long size, OutputStream dest) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long copied = 0;
+        while (copied < size) {
+            bb.clear();
+            if (size - copied < bb.capacity()) {
+                bb.limit((int) (size - copied));
+            }
+            int read = source.read(bb);
+            if (read < 0) {
+                throw new EOFException("The file has been truncated while copying it");
+            }
+            dest.write(buffer, 0, read);
+            copied += read;
+        }
+    }
+
+    private void writeShort(int v) throws IOException {
+        out.write(v & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+    }
+
+    private void writeInt(long v) throws IOException {
+        out.write((int) (v & 0xFF));
+        out.write((int) ((v >>> 8) & 0xFF));
+        out.write((int) ((v >>> 16) & 0xFF));
+        out.write((int) ((v >>> 24) & 0xFF));
+    }
+
+    private void writeLong(long v) throws IOException {
+        writeInt(v & MAX_32);
+        writeInt(v >>> 32);
+    }
+
+    private static long toDosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21)
+                | (c.get(Calendar.DAY_OF_MONTH) << 16) | (c.get(Calendar.HOUR_OF_DAY) << 11)
+                | (c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * Deflates into the archive what the stream sources write.
+     */
+    private class DeflatingStream extends OutputStream {
+
+        final CRC32 crc = new CRC32();
+
+        final Deflater deflater;
+
+        private final byte[] deflated = new byte[64 * 1024];
+
+        DeflatingStream(int level) {
+            deflater = new Deflater(level, true);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(deflated);
+                out.write(deflated, 0, n);
+            }
+        }
+
+        void finish() throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(deflated);
+                out.write(deflated, 0, n);
+            }
+        }
+
+        @Override
+        public void close() {
+            // the entry is closed by the writer
+        }
+    }
+
+    private static class Entry {
+
+        String name;
+
+        byte[] nameBytes;
+
+        int method;
+
+        int flags;
+
+        long dosTime;
+
+        long crc;
+
+        long compressedSize;
+
+        long size;
+
+        long offset;
+
+        /** the local header has the ZIP64 extra field */
+        boolean zip64;
+    }
+
+    /**
+     * Keeps track of the offsets, the ZIP headers need them.
+     */
+    static class CountingOutputStream extends OutputStream {
+
+        private final OutputStream delegate;
+
+        private long count;
+
+        CountingOutputStream(OutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            count += len;
+        }
+
+        /**
+         * Account for data written straight to the underlying stream.
+         */
+        void skip(long written) {
+            count += written;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import it.geosolutions.mariss.wps.monitor.DownloadMetrics;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.logging.Logger;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.geoserver.wps.ppio.BinaryPPIO;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Encode the resources as an uncompressed tar, the files are copied as they are from the disk.
+ * The stream resources are spooled to a temporary file first, a tar entry needs its size before
+ * its data.
+ */
+public class TarResourcesPPIO extends BinaryPPIO {
+
+    static final Logger LOGGER = Logging.getLogger(TarResourcesPPIO.class);
+
+    private File spoolDirectory;
+
+    protected TarResourcesPPIO() {
+        this("application/x-tar");
+    }
+
+    protected TarResourcesPPIO(String mimeType) {
+        super(OutputStream.class, OutputResource.class, mimeType);
+    }
+
+    /**
+     * @param spoolDirectory where the stream resources are spooled, the system temporary
+     *        directory if not set
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = new File(spoolDirectory);
+    }
+
+    @Override
+    public Object decode(InputStream input) throws Exception {
+        return null;
+    }
+
+    @Override
+    public void encode(Object value, OutputStream os) throws Exception {
+
+        OutputResource or = (OutputResource) value;
+        if (or.getArchiveCopy() != null) {
+            // the result cache keeps the ZIP archives only, drop the copy registered for it
+            or.getArchiveCopy().completed(false);
+        }
+        CountingOutputStream counting = new CountingOutputStream(os);
+        OutputStream out = counting;
+        DownloadMetrics.Timer timer = DownloadMetrics.getInstance().start(getStage());
+        try {
+            out = wrap(counting);
+            // a plain tar is counted by the writer, a compressed one after the compressor
+            boolean compressed = out != counting;
+            StreamingTarWriter tar = new StreamingTarWriter(compressed ? out : os);
+            if (or.getArchive() != null) {
+                repack(or.getArchive(), tar);
+            } else {
+                writeResources(or, tar);
+            }
+            tar.finish();
+            // ends the compressed frame, if any
+            out.close();
+            timer.stop(compressed ? counting.getByteCount() : tar.getBytesWritten());
+        } finally {
+            or.release();
+            timer.close();
+            try {
+                // frees the compressor of a failed archive too
+                out.close();
+            } catch (IOException e) {
+                LOGGER.severe(e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "tar";
+    }
+
+    /**
+     * @return the compressing stream around the output, the output itself for a plain tar
+     */
+    protected OutputStream wrap(OutputStream os) throws IOException {
+        return os;
+    }
+
+    /**
+     * @return the stage timing the archives
+     */
+    protected String getStage() {
+        return DownloadMetrics.ARCHIVE_TAR;
+    }
+
+    /**
+     * The same entries, in the same order, of the ZIP written by {@link OutputResourceArchiver}.
+     */
+    private void writeResources(OutputResource or, StreamingTarWriter tar) throws IOException {
+
+        Iterator<File> iter = or.getDeletableResourcesIterator();
+        while (iter.hasNext()) {
+
+            File tmp = iter.next();
+            if (!tmp.exists() || !tmp.canRead() || !tmp.canWrite()) {
+                LOGGER.warning("Skip Deletable file '" + tmp.getName()
+                        + "' some problems occurred...");
+                continue;
+            }
+
+            tar.putFile(tmp.getName(), tmp);
+
+            if (!tmp.delete()) {
+                LOGGER.warning("File '" + tmp.getName() + "' cannot be deleted...");
+            }
+        }
+
+        Iterator<StreamSource> iter3 = or.getStreamResourcesIterator();
+        while (iter3.hasNext()) {
+            putSpooled(iter3.next(), tar);
+        }
+
+        Iterator<File> iter2 = or.getUndeletableResourcesIterator();
+        while (iter2.hasNext()) {
+
+            File tmp = iter2.next();
+            if (!tmp.exists() || !tmp.canRead()) {
+                LOGGER.warning("Skip Undeletable file '" + tmp.getName()
+                        + "' some problems occurred...");
+                continue;
+            }
+
+            tar.putFile(tmp.getName(), tmp);
+        }
+    }
+
+    private void putSpooled(StreamSource source, StreamingTarWriter tar) throws IOException {
+        File spool = File.createTempFile("tar", ".spool", spoolDirectory);
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(spool), 64 * 1024);
+            try {
+                source.writeTo(os);
+            } finally {
+                os.close();
+            }
+            FileInputStream in = new FileInputStream(spool);
+            try {
+                tar.putEntry(source.getName(), System.currentTimeMillis(), spool.length(), in);
+            } finally {
+                in.close();
+            }
+        } finally {
+            if (!spool.delete()) {
+                LOGGER.warning("File '" + spool.getName() + "' cannot be deleted...");
+            }
+        }
+    }
+
+    /**
+     * An archive of the result cache is a ZIP, its entries are moved to the tar. It is read with
+     * commons-compress, java.util.zip does not read the ZIP64 archives before Java 7.
+     */
+    private static void repack(File archive, StreamingTarWriter tar) throws IOException {
+        ZipFile zip = new ZipFile(archive);
+        try {
+            Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    tar.putEntry(entry.getName(), entry.getTime(), entry.getSize(), in);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+}
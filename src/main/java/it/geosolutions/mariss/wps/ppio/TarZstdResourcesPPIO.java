@@ -0,0 +1,89 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import it.geosolutions.mariss.wps.monitor.DownloadMetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Encode the resources as a tar compressed with zstd. With more than one compression thread the
+ * zstd frame is compressed in parallel by the native worker threads of the library, zstd-jni
+ * 1.4.0-1 or later.
+ */
+public class TarZstdResourcesPPIO extends TarResourcesPPIO {
+
+    static final Logger LOGGER = Logging.getLogger(TarZstdResourcesPPIO.class);
+
+    private int compressionLevel = 3;
+
+    private int compressionThreads = 1;
+
+    protected TarZstdResourcesPPIO() {
+        super("application/zstd");
+    }
+
+    /**
+     * @param compressionLevel the zstd level, 1 (fastest) to 19
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param compressionThreads the zstd workers of each archive, 1 to compress on the request
+     *        thread
+     */
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "tar.zst";
+    }
+
+    @Override
+    protected OutputStream wrap(OutputStream os) throws IOException {
+        ZstdOutputStream zos = new ZstdOutputStream(os, compressionLevel);
+        if (compressionThreads > 1) {
+            try {
+                zos.setWorkers(compressionThreads);
+            } catch (IOException e) {
+                // a native library built without the multithreading support
+                LOGGER.warning("The zstd workers are not available, compressing on the request thread: "
+                        + e.getMessage());
+            }
+        }
+        return zos;
+    }
+
+    @Override
+    protected String getStage() {
+        return DownloadMetrics.ARCHIVE_TAR_ZSTD;
+    }
+}
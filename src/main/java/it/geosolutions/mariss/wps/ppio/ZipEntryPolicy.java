@@ -0,0 +1,190 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Decide how each file is stored in the output archive. Files of a known compressed type (zip,
+ * kmz, images...) and files whose content proves not to shrink are STORED, the others are
+ * DEFLATED at the configured level.
+ * <p>
+ * The content check deflates a small sample taken from the middle of the file, so a compressed
+ * GeoTIFF is recognized without reading it all.
+ */
+public class ZipEntryPolicy {
+
+    static final Logger LOGGER = Logging.getLogger(ZipEntryPolicy.class);
+
+    public static final String DEFAULT_STORED_EXTENSIONS = "zip,kmz,gz,tgz,bz2,xz,7z,zst,jpg,jpeg,png,gif,jp2,j2k,ecw,sid";
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private Set<String> storedExtensions = parseExtensions(DEFAULT_STORED_EXTENSIONS);
+
+    private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private double incompressibleRatio = 0.95;
+
+    private long minSampledSize = 1024 * 1024;
+
+    /**
+     * @param storedExtensions comma separated list of the file extensions always STORED
+     */
+    public void setStoredExtensions(String storedExtensions) {
+        this.storedExtensions = parseExtensions(storedExtensions);
+    }
+
+    /**
+     * @param deflateLevel the {@link Deflater} level for the entries that are compressed
+     */
+    public void setDeflateLevel(int deflateLevel) {
+        if ((deflateLevel < Deflater.BEST_SPEED || deflateLevel > Deflater.BEST_COMPRESSION)
+                && deflateLevel != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid deflate level " + deflateLevel);
+        }
+        this.deflateLevel = deflateLevel;
+    }
+
+    public int getDeflateLevel() {
+        return deflateLevel;
+    }
+
+    /**
+     * @param incompressibleRatio files whose sample does not shrink below this ratio are STORED,
+     *        a value above 1 disables the content check
+     */
+    public void setIncompressibleRatio(double incompressibleRatio) {
+        this.incompressibleRatio = incompressibleRatio;
+    }
+
+    /**
+     * @param minSampledSize smaller files are always DEFLATED, they are cheap anyway
+     */
+    public void setMinSampledSize(long minSampledSize) {
+        this.minSampledSize = minSampledSize;
+    }
+
+    /**
+     * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+     */
+    public int getMethod(File f) {
+        if (storedExtensions.contains(getExtension(f.getName()))) {
+            return ZipEntry.STORED;
+        }
+        if (incompressibleRatio <= 1 && f.length() >= minSampledSize) {
+            try {
+                double ratio = sampleRatio(f);
+                if (ratio >= incompressibleRatio) {
+                    LOGGER.fine("File '" + f.getName() + "' is not compressible (" + ratio + "), it is stored");
+                    return ZipEntry.STORED;
+                }
+            } catch (IOException e) {
+                LOGGER.warning("Unable to sample the file '" + f.getName() + "': " + e.getMessage());
+            }
+        }
+        return ZipEntry.DEFLATED;
+    }
+
+    /**
+     * The level of an entry whose content is streamed, so it cannot be sampled nor STORED: the
+     * known compressed types are written as deflate blocks without compression.
+     */
+    public int getStreamLevel(String name) {
+        return storedExtensions.contains(getExtension(name)) ? Deflater.NO_COMPRESSION : deflateLevel;
+    }
+
+    /**
+     * Compute the CRC32 of the file, the STORED entries need it before the data are written.
+     */
+    public static long computeCrc(File f) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(f);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private static double sampleRatio(File f) throws IOException {
+        byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, f.length())];
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.seek((f.length() - sample.length) / 2);
+            raf.readFully(sample);
+        } finally {
+            raf.close();
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] out = new byte[sample.length + 1024];
+            int compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            return (double) compressed / sample.length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String getExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static Set<String> parseExtensions(String extensions) {
+        Set<String> result = new HashSet<String>();
+        if (extensions != null) {
+            for (String ext : extensions.split(",")) {
+                ext = ext.trim().toLowerCase(Locale.ENGLISH);
+                if (ext.startsWith(".")) {
+                    ext = ext.substring(1);
+                }
+                if (ext.length() > 0) {
+                    result.add(ext);
+                }
+            }
+        }
+        return result;
+    }
+}
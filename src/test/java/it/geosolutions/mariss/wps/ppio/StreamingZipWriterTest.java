@@ -0,0 +1,224 @@
+/*
+ *  https://github.com/geosolutions-it/fra2015
+ *  Copyright (C) 2007-2012 GeoSolutions S.A.S.
+ *  http://www.geo-solutions.it
+ *
+ *  GPLv3 + Classpath exception
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package it.geosolutions.mariss.wps.ppio;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Enumeration;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The ZIP64 extensions of {@link StreamingZipWriter}, the archives are read back with
+ * commons-compress, through the central directory and through the local headers.
+ * <p>
+ * The entry over 4 GB takes a while, it runs with -DlargeTests=true or the large-tests profile.
+ */
+public class StreamingZipWriterTest extends TestCase {
+
+    private static final long FOUR_GB = 0x100000000L;
+
+    static final String LARGE_TESTS = "largeTests";
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("zip64", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * An entry of 4.5 GB from a sparse file: zeros, the archive stays small.
+     */
+    public void testEntryLargerThan4GB() throws IOException {
+        if (!Boolean.getBoolean(LARGE_TESTS)) {
+            return;
+        }
+        long size = FOUR_GB + FOUR_GB / 8;
+        File sparse = new File(dir, "sparse.raw");
+        RandomAccessFile raf = new RandomAccessFile(sparse, "rw");
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+        File small = writeFile("small.txt", "after the large entry\n");
+
+        File zip = new File(dir, "large.zip");
+        OutputStream os = new FileOutputStream(zip);
+        try {
+            StreamingZipWriter writer = new StreamingZipWriter(os);
+            writer.putDeflated(sparse.getName(), sparse, Deflater.BEST_SPEED);
+            writer.putStored(small.getName(), small);
+            writer.finish();
+        } finally {
+            os.close();
+        }
+
+        long crc = crc(sparse);
+        ZipFile zf = new ZipFile(zip);
+        try {
+            ZipArchiveEntry entry = zf.getEntry(sparse.getName());
+            assertEquals(size, entry.getSize());
+            assertEquals(crc, entry.getCrc());
+            InputStream in = zf.getInputStream(entry);
+            try {
+                assertEquals(crc, crc(in));
+            } finally {
+                in.close();
+            }
+            ZipArchiveEntry after = zf.getEntry(small.getName());
+            assertEquals(small.length(), after.getSize());
+            in = zf.getInputStream(after);
+            try {
+                assertEquals(crc(small), crc(in));
+            } finally {
+                in.close();
+            }
+        } finally {
+            zf.close();
+        }
+    }
+
+    /**
+     * More entries than the 16 bits count of the end of central directory.
+     */
+    public void testMoreThan65535Entries() throws IOException {
+        int entries = 70000;
+        File f = writeFile("entry.txt", "a small entry\n");
+        long crc = crc(f);
+
+        File zip = new File(dir, "many.zip");
+        OutputStream os = new FileOutputStream(zip);
+        try {
+            StreamingZipWriter writer = new StreamingZipWriter(os);
+            for (int i = 0; i < entries; i++) {
+                if (i % 2 == 0) {
+                    writer.putStored("e" + i + ".txt", f);
+                } else {
+                    writer.putDeflated("e" + i + ".txt", f, Deflater.DEFAULT_COMPRESSION);
+                }
+            }
+            writer.finish();
+        } finally {
+            os.close();
+        }
+
+        // the readers disagree on a truncated 16 bits count, it must be in the ZIP64 record
+        assertTrue("No ZIP64 end of central directory", hasZip64Locator(zip));
+
+        ZipFile zf = new ZipFile(zip);
+        try {
+            int count = 0;
+            Enumeration<ZipArchiveEntry> it = zf.getEntries();
+            while (it.hasMoreElements()) {
+                ZipArchiveEntry entry = it.nextElement();
+                assertEquals("e" + count + ".txt", entry.getName());
+                assertEquals(f.length(), entry.getSize());
+                assertEquals(crc, entry.getCrc());
+                count++;
+            }
+            assertEquals(entries, count);
+            InputStream in = zf.getInputStream(zf.getEntry("e" + (entries - 1) + ".txt"));
+            try {
+                assertEquals(crc, crc(in));
+            } finally {
+                in.close();
+            }
+        } finally {
+            zf.close();
+        }
+
+        // the local headers and the data descriptors, as a streaming reader sees them
+        ZipArchiveInputStream zis = new ZipArchiveInputStream(new BufferedInputStream(
+                new FileInputStream(zip)));
+        try {
+            int count = 0;
+            while (zis.getNextZipEntry() != null) {
+                assertEquals(crc, crc(zis));
+                count++;
+            }
+            assertEquals(entries, count);
+        } finally {
+            zis.close();
+        }
+    }
+
+    /**
+     * The ZIP64 locator is right before the end of central directory, the archives of the writer
+     * have no comment.
+     */
+    private static boolean hasZip64Locator(File zip) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(zip, "r");
+        try {
+            raf.seek(raf.length() - 22 - 20);
+            int signature = raf.read() | raf.read() << 8 | raf.read() << 16 | raf.read() << 24;
+            return signature == 0x07064b50;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File writeFile(String name, String content) throws IOException {
+        File f = new File(dir, name);
+        FileUtils.writeStringToFile(f, content, "UTF-8");
+        return f;
+    }
+
+    private static long crc(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return crc(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long crc(InputStream in) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1024 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+        }
+        return crc.getValue();
+    }
+}